@@ -0,0 +1,143 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraftforge.fml.relauncher.Side;
+
+/**
+ * The packets and values the benchmarks work with. Codecs are built
+ * straight from their specs, without a channel, so nothing needs Minecraft
+ * to be running. Every value is fixed, so runs of the same build can be
+ * compared with each other.
+ */
+final class BenchmarkPackets {
+	enum Mode { OFF, IDLE, RUNNING, BLOCKED }
+
+	/** the id benchmark packets get, the first one after the control ids */
+	private static final int ID = 5;
+
+	private BenchmarkPackets() {}
+
+	static final String[] SHAPES = {"small", "booleans", "strings", "nbt"};
+
+	/**
+	 * @param shape one of {@link #SHAPES}
+	 * @param generated whether the codec may use a generated class for its
+	 * 		fields, or must always interpret them
+	 */
+	static PacketCodec codec(String shape, boolean generated) {
+		LambdaNetworkBuilder builder = LambdaNetwork.builder().channel("bench");
+		PacketSpec spec = builder.packet(shape).boundTo(Side.CLIENT);
+		if ("small".equals(shape)) {
+			// an entity moving
+			spec.with(DataType.VARINT, "entityId")
+				.with(DataType.FLOAT_32, "x")
+				.with(DataType.FLOAT_32, "y")
+				.with(DataType.FLOAT_32, "z")
+				.with(DataType.ANGLE, "yaw");
+		} else if ("booleans".equals(shape)) {
+			// a machine's status flags
+			for (int i = 0; i < 16; i++) {
+				spec.with(DataType.BOOLEAN, "flag"+i);
+			}
+			spec.with(0, 15, "level")
+				.with(Mode.class, "mode");
+		} else if ("strings".equals(shape)) {
+			// an item's display info
+			spec.with(DataType.STRING, "name")
+				.with(DataType.INTERNED_STRING, "registryName")
+				.with(DataType.STRING, "description");
+		} else if ("nbt".equals(shape)) {
+			// an inventory
+			spec.with(DataType.VARINT, "windowId")
+				.with(DataType.NBT_COMPOUND, "contents");
+		} else {
+			throw new IllegalArgumentException("No such benchmark packet '"+shape+"'");
+		}
+		spec.handledBy((player, token) -> {});
+		List<PacketSpec> specs = builder.getPackets("bench");
+		return new PacketCodec(PacketSpec.immutableClone(specs.get(specs.size()-1)), ID, generated);
+	}
+
+	/**
+	 * @return a complete set of values for the given codec's packet
+	 */
+	static Slots values(PacketCodec codec) {
+		PacketSpec spec = codec.spec;
+		Slots values = new Slots(codec);
+		String shape = spec.getIdentifier();
+		if ("small".equals(shape)) {
+			values.setBoxed(spec.indexOf("entityId"), 48213);
+			values.setBoxed(spec.indexOf("x"), 1204.5);
+			values.setBoxed(spec.indexOf("y"), 67.0);
+			values.setBoxed(spec.indexOf("z"), -3391.25);
+			values.setBoxed(spec.indexOf("yaw"), 135.0);
+		} else if ("booleans".equals(shape)) {
+			for (int i = 0; i < 16; i++) {
+				values.setBoxed(spec.indexOf("flag"+i), i % 3 == 0);
+			}
+			values.setBoxed(spec.indexOf("level"), 11);
+			values.setBoxed(spec.indexOf("mode"), Mode.RUNNING);
+		} else if ("strings".equals(shape)) {
+			values.setBoxed(spec.indexOf("name"), "Enchanted Diamond Pickaxe");
+			values.setBoxed(spec.indexOf("registryName"), "minecraft:diamond_pickaxe");
+			values.setBoxed(spec.indexOf("description"), repeat("Mines faster than anything else in the realm. ", 4));
+		} else if ("nbt".equals(shape)) {
+			values.setBoxed(spec.indexOf("windowId"), 3);
+			values.setBoxed(spec.indexOf("contents"), inventory());
+		}
+		return values;
+	}
+
+	/**
+	 * Runs every shape through the interpreted codecs a few thousand times.
+	 * Otherwise the call sites they share would only ever see the types of
+	 * the one packet being measured, and the JIT would inline them the way
+	 * it can't on a server sending many kinds of packet.
+	 */
+	static void warmInterpreted() {
+		for (String shape : SHAPES) {
+			PacketCodec codec = codec(shape, false);
+			Slots values = values(codec);
+			ByteBuf buf = Unpooled.buffer(codec.sizeOf(values));
+			for (int i = 0; i < 10000; i++) {
+				buf.clear();
+				codec.encode(values, buf);
+				buf.skipBytes(codec.discriminatorBytes);
+				codec.decode(buf, new Slots(codec), null);
+			}
+		}
+	}
+
+	/**
+	 * @return a chest's worth of items, as they'd be written by vanilla
+	 */
+	static NBTTagCompound inventory() {
+		NBTTagList items = new NBTTagList();
+		for (int i = 0; i < 27; i++) {
+			NBTTagCompound item = new NBTTagCompound();
+			item.setByte("Slot", (byte)i);
+			item.setString("id", i % 2 == 0 ? "minecraft:cobblestone" : "minecraft:iron_ingot");
+			item.setByte("Count", (byte)(i*7 % 64 + 1));
+			item.setShort("Damage", (short)0);
+			items.appendTag(item);
+		}
+		NBTTagCompound tag = new NBTTagCompound();
+		tag.setTag("Items", items);
+		tag.setString("CustomName", "Storage");
+		return tag;
+	}
+
+	private static String repeat(String str, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(str);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encode and decode throughput of whole packets, the way
+ * {@link LambdaChannel} does them: sized, encoded into a buffer from the
+ * pooled allocator and released again, or decoded into fresh slots. Run
+ * with the gc profiler, which the build turns on, the allocation rate per
+ * operation shows what each packet costs the garbage collector.
+ * <p>
+ * Each packet is measured with its generated codec and with the interpreted
+ * one, after the interpreted one's shared call sites have seen every shape.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	@Param({"small", "booleans", "strings", "nbt"})
+	public String packet;
+	@Param({"true", "false"})
+	public boolean generated;
+
+	private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+	private PacketCodec codec;
+	private Slots values;
+	private ByteBuf payload;
+
+	@Setup
+	public void setup() {
+		BenchmarkPackets.warmInterpreted();
+		codec = BenchmarkPackets.codec(packet, generated);
+		values = BenchmarkPackets.values(codec);
+		values.checkComplete();
+		payload = Unpooled.buffer(codec.sizeOf(values));
+		codec.encode(values, payload);
+	}
+
+	@Benchmark
+	public int encode() {
+		ByteBuf buf = alloc.heapBuffer(codec.sizeOf(values));
+		try {
+			codec.encode(values, buf);
+			return buf.writerIndex();
+		} finally {
+			buf.release();
+		}
+	}
+
+	@Benchmark
+	public Slots decode() {
+		payload.readerIndex(codec.discriminatorBytes);
+		Slots out = new Slots(codec);
+		codec.decode(payload, out, null);
+		return out;
+	}
+
+	@Benchmark
+	public Slots roundTrip() {
+		ByteBuf buf = alloc.heapBuffer(codec.sizeOf(values));
+		try {
+			codec.encode(values, buf);
+			buf.skipBytes(codec.discriminatorBytes);
+			Slots out = new Slots(codec);
+			codec.decode(buf, out, null);
+			return out;
+		} finally {
+			buf.release();
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.Vec3;
+
+/**
+ * Write and read throughput of each DataType on its own, through the same
+ * unboxed writers and readers the codecs use. The bit-packed types don't
+ * have writers of their own, so they're covered by the "booleans" packet
+ * of {@link CodecBenchmark} instead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DataTypeBenchmark {
+	@Param({
+		"VARINT", "VARINT_ZIGZAG", "UINT_8", "INT_8", "UINT_16", "INT_16",
+		"UINT_24", "INT_24", "UINT_32", "INT_32", "INT_64", "FLOAT_32",
+		"FLOAT_64", "ANGLE", "BLOCK_POS", "BLOCK_POS_VARLONG", "UNIT_VECTOR",
+		"UUID", "STRING", "INTERNED_STRING", "ARBITRARY", "INT_ARRAY",
+		"VARINT_ARRAY", "SHORT_ARRAY", "LONG_ARRAY", "FLOAT_ARRAY",
+		"NBT_COMPOUND"
+	})
+	public String type;
+
+	private DataType dataType;
+	private long longValue;
+	private double doubleValue;
+	private Object value;
+	private ByteBuf out;
+	private ByteBuf in;
+
+	@Setup
+	public void setup() {
+		dataType = DataType.valueOf(type);
+		longValue = 48213;
+		doubleValue = 135.5;
+		value = sample(dataType);
+		out = Unpooled.buffer(65536);
+		in = Unpooled.buffer(65536);
+		write(in);
+	}
+
+	private static Object sample(DataType type) {
+		switch (type) {
+			case BLOCK_POS:
+			case BLOCK_POS_VARLONG:
+				return new BlockPos(1204, 67, -3391);
+			case UNIT_VECTOR:
+				return new Vec3(0.6, 0.8, 0);
+			case UUID:
+				return new UUID(0x0123456789ABCDEFL, 0xFEDCBA9876543210L);
+			case STRING:
+			case INTERNED_STRING:
+				return "minecraft:diamond_pickaxe";
+			case ARBITRARY: {
+				byte[] arr = new byte[256];
+				for (int i = 0; i < arr.length; i++) {
+					arr[i] = (byte)(i*31);
+				}
+				return arr;
+			}
+			case INT_ARRAY:
+			case VARINT_ARRAY: {
+				int[] arr = new int[64];
+				for (int i = 0; i < arr.length; i++) {
+					arr[i] = i*i;
+				}
+				return arr;
+			}
+			case SHORT_ARRAY: {
+				short[] arr = new short[64];
+				for (int i = 0; i < arr.length; i++) {
+					arr[i] = (short)(i*i);
+				}
+				return arr;
+			}
+			case LONG_ARRAY: {
+				long[] arr = new long[64];
+				for (int i = 0; i < arr.length; i++) {
+					arr[i] = i*0x9E3779B97F4A7C15L;
+				}
+				return arr;
+			}
+			case FLOAT_ARRAY: {
+				float[] arr = new float[64];
+				for (int i = 0; i < arr.length; i++) {
+					arr[i] = i/3f;
+				}
+				return arr;
+			}
+			case NBT_COMPOUND:
+				return BenchmarkPackets.inventory();
+			default:
+				return null;
+		}
+	}
+
+	private void write(ByteBuf buf) {
+		if (dataType.storage == DataType.Storage.LONG) {
+			dataType.longWriter.accept(buf, longValue);
+		} else if (dataType.storage == DataType.Storage.DOUBLE) {
+			dataType.doubleWriter.accept(buf, doubleValue);
+		} else {
+			dataType.writer.accept(buf, value);
+		}
+	}
+
+	@Benchmark
+	public ByteBuf write() {
+		out.clear();
+		write(out);
+		return out;
+	}
+
+	@Benchmark
+	public Object read() {
+		in.readerIndex(0);
+		if (dataType.storage == DataType.Storage.LONG) {
+			return dataType.longReader.applyAsLong(in);
+		} else if (dataType.storage == DataType.Storage.DOUBLE) {
+			return dataType.doubleReader.applyAsDouble(in);
+		} else {
+			return dataType.reader.apply(in);
+		}
+	}
+
+}
@@ -0,0 +1,5 @@
+package com.unascribed.lambdanetwork;
+
+public interface BiFunction<T, U, R> {
+	R apply(T t, U u);
+}
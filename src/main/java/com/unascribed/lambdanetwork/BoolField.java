@@ -0,0 +1,11 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on a boolean data entry, from {@link PacketSpec#boolField(String)}.
+ */
+public final class BoolField extends DataField {
+	
+	BoolField(PacketSpec spec, String key) {
+		super(spec, key);
+	}
+}
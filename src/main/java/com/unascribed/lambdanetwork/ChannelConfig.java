@@ -0,0 +1,22 @@
+package com.unascribed.lambdanetwork;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * Per-channel settings collected by {@link LambdaNetworkBuilder}.
+ */
+final class ChannelConfig {
+	ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+	boolean directBuffers = false;
+	boolean bundled = false;
+	/** deflate level, or -2 to not compress */
+	int compressionLevel = -2;
+	int compressionThreshold = 0;
+	/** bytes of streamed packets to send each player per tick */
+	int streamingBudget = 65536;
+	/** most packets handled on the main thread per tick */
+	int mainThreadPackets = Integer.MAX_VALUE;
+	/** most time spent handling packets on the main thread per tick */
+	long mainThreadNanos = 10000000L;
+}
@@ -0,0 +1,57 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.MapMaker;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.World;
+import net.minecraftforge.event.world.ChunkWatchEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+/**
+ * An index of which players are watching which chunks, kept up to date from
+ * Forge's chunk watch events. A player counts as watching a chunk once the
+ * chunk has actually been sent to them, same as
+ * {@link net.minecraft.server.management.PlayerManager#isPlayerWatchingChunk}.
+ * <p>
+ * Only touched from the server thread. Public only so that the event bus
+ * can call it.
+ */
+public final class ChunkWatchers {
+	private final PlayerBuckets chunks = new PlayerBuckets();
+	/**
+	 * the world each player's watches were recorded in. by the time a player
+	 * changing dimension gets unwatch events for their old chunks, their
+	 * worldObj already points to the new world
+	 */
+	private final Map<EntityPlayerMP, World> watchWorlds = new MapMaker().weakKeys().makeMap();
+
+	ChunkWatchers() {}
+
+
+	@SubscribeEvent
+	public void onWatch(ChunkWatchEvent.Watch e) {
+		World world = e.player.worldObj;
+		watchWorlds.put(e.player, world);
+		chunks.add(world, PlayerBuckets.key(e.chunk.chunkXPos, e.chunk.chunkZPos), e.player);
+	}
+
+	@SubscribeEvent
+	public void onUnWatch(ChunkWatchEvent.UnWatch e) {
+		World world = watchWorlds.get(e.player);
+		if (world == null) return;
+		chunks.remove(world, PlayerBuckets.key(e.chunk.chunkXPos, e.chunk.chunkZPos), e.player);
+	}
+
+
+	/**
+	 * @return the players watching the given chunk, or null if there are
+	 * 		none. the returned list is live and must not be modified
+	 */
+	List<EntityPlayerMP> get(World world, int chunkX, int chunkZ) {
+		return chunks.get(world, chunkX, chunkZ);
+	}
+
+}
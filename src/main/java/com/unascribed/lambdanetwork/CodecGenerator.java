@@ -0,0 +1,448 @@
+package com.unascribed.lambdanetwork;
+
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Generates a {@link FieldCodec} for each packet when its network is built.
+ * The interpreted loops in {@link PacketCodec} send every field of every
+ * packet through the same few call sites, which see so many DataTypes that
+ * the JIT can't inline any of them; a generated class has its own call site
+ * for each field, calling the ByteBuf method it needs directly wherever
+ * there is one.
+ * <p>
+ * The classes are defined in this class's own loader and package, so that
+ * they can reach the slot arrays, which takes reflective access to
+ * ClassLoader.defineClass. Wherever that or ASM isn't available, packets are
+ * left to the interpreted loops, which write the same bytes. Setting the
+ * system property {@code lambdanetwork.interpretCodecs} to true does the
+ * same, for ruling the generated classes out when debugging.
+ */
+final class CodecGenerator implements Opcodes {
+	private static final Logger log = LogManager.getLogger("LambdaNetwork");
+	private static final boolean DISABLED = Boolean.getBoolean("lambdanetwork.interpretCodecs");
+
+	// looked up rather than written out, so that shading can relocate them
+	private static final String SUPER = Type.getInternalName(FieldCodec.class);
+	private static final String SLOTS = Type.getInternalName(Slots.class);
+	private static final String BUF = Type.getInternalName(ByteBuf.class);
+	private static final String WIRE_FORMAT = Type.getInternalName(WireFormat.class);
+	private static final String DATA_TYPE = Type.getInternalName(DataType.class);
+	private static final String DICTIONARY = Type.getInternalName(StringDictionary.class);
+	private static final String PACKAGE = SUPER.substring(0, SUPER.lastIndexOf('/')+1);
+
+	/** local variables of the generated methods */
+	private static final int STRINGS = 3;
+	private static final int LONGS = 4;
+	private static final int DOUBLES = 5;
+	private static final int OBJECTS = 6;
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+	private static volatile Method defineClass;
+	/** set after the first failure, so that every later packet skips straight to the loops */
+	private static volatile boolean failed;
+
+	private CodecGenerator() {}
+
+	/**
+	 * @return a generated codec for the given packet's fields, or null if
+	 * 		classes can't be generated here
+	 */
+	static FieldCodec generate(PacketCodec codec) {
+		if (DISABLED || failed) return null;
+		String name = PACKAGE+"GeneratedCodec$"+codec.spec.getIdentifier().replaceAll("[^A-Za-z0-9_]", "_")+"$"+nextId.incrementAndGet();
+		try {
+			return (FieldCodec)define(name.replace('/', '.'), generate(codec, name)).newInstance();
+		} catch (Exception e) {
+			fail(codec, e);
+		} catch (LinkageError e) {
+			fail(codec, e);
+		}
+		return null;
+	}
+
+	private static void fail(PacketCodec codec, Throwable t) {
+		failed = true;
+		log.warn("Couldn't generate a codec for lambda packet '"+codec.spec.getIdentifier()+"', falling back to interpreted codecs", t);
+	}
+
+	private static Class<?> define(String name, byte[] bytes) throws Exception {
+		Method m = defineClass;
+		if (m == null) {
+			m = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+			m.setAccessible(true);
+			defineClass = m;
+		}
+		return (Class<?>)m.invoke(FieldCodec.class.getClassLoader(), name, bytes, 0, bytes.length, FieldCodec.class.getProtectionDomain());
+	}
+
+	private static byte[] generate(PacketCodec codec, String name) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		// the methods are straight-line code, so there are no frames to compute
+		cw.visit(V1_6, ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, name, null, SUPER, null);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, SUPER, "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		// write(Slots values, ByteBuf buf, StringDictionary strings)
+		mv = cw.visitMethod(0, "write", "(L"+SLOTS+";L"+BUF+";L"+DICTIONARY+";)V", null, null);
+		mv.visitCode();
+		loadArrays(mv, codec, 1);
+		for (int slot : codec.valueSlots) {
+			write(mv, codec, slot, 2);
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		// read(ByteBuf buf, Slots values, StringDictionary strings)
+		mv = cw.visitMethod(0, "read", "(L"+BUF+";L"+SLOTS+";L"+DICTIONARY+";)V", null, null);
+		mv.visitCode();
+		loadArrays(mv, codec, 2);
+		for (int slot : codec.valueSlots) {
+			read(mv, codec, slot, 1);
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Copies the slot arrays the packet uses into locals, so each field
+	 * doesn't have to load them again.
+	 */
+	private static void loadArrays(MethodVisitor mv, PacketCodec codec, int values) {
+		if (codec.longSlots > 0) {
+			mv.visitVarInsn(ALOAD, values);
+			mv.visitFieldInsn(GETFIELD, SLOTS, "longs", "[J");
+			mv.visitVarInsn(ASTORE, LONGS);
+		}
+		if (codec.doubleSlots > 0) {
+			mv.visitVarInsn(ALOAD, values);
+			mv.visitFieldInsn(GETFIELD, SLOTS, "doubles", "[D");
+			mv.visitVarInsn(ASTORE, DOUBLES);
+		}
+		if (codec.referenceSlots > 0) {
+			mv.visitVarInsn(ALOAD, values);
+			mv.visitFieldInsn(GETFIELD, SLOTS, "objects", "[Ljava/lang/Object;");
+			mv.visitVarInsn(ASTORE, OBJECTS);
+		}
+	}
+
+	/**
+	 * Emits the same thing {@link PacketCodec}'s writeSlot does for the
+	 * given slot.
+	 */
+	private static void write(MethodVisitor mv, PacketCodec codec, int slot, int buf) {
+		DataType type = codec.types[slot];
+		switch (type) {
+			case UINT_8: case INT_8:
+				writeInt(mv, slot, buf, "writeByte");
+				return;
+			case UINT_16: case INT_16:
+				writeInt(mv, slot, buf, "writeShort");
+				return;
+			case UINT_24: case INT_24:
+				writeInt(mv, slot, buf, "writeMedium");
+				return;
+			case UINT_32: case INT_32:
+				writeInt(mv, slot, buf, "writeInt");
+				return;
+			case INT_64:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, LONGS, slot, LALOAD);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "writeLong", "(J)L"+BUF+";", false);
+				mv.visitInsn(POP);
+				return;
+			case FLOAT_32:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, DOUBLES, slot, DALOAD);
+				mv.visitInsn(D2F);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "writeFloat", "(F)L"+BUF+";", false);
+				mv.visitInsn(POP);
+				return;
+			case FLOAT_64:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, DOUBLES, slot, DALOAD);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "writeDouble", "(D)L"+BUF+";", false);
+				mv.visitInsn(POP);
+				return;
+			case VARINT:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, LONGS, slot, LALOAD);
+				mv.visitInsn(L2I);
+				writeVarInt(mv);
+				return;
+			case VARINT_ZIGZAG:
+				// (i << 1) ^ (i >> 31)
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, LONGS, slot, LALOAD);
+				mv.visitInsn(L2I);
+				mv.visitInsn(DUP);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(ISHL);
+				mv.visitInsn(SWAP);
+				push(mv, 31);
+				mv.visitInsn(ISHR);
+				mv.visitInsn(IXOR);
+				writeVarInt(mv);
+				return;
+			case FIXED:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, DOUBLES, slot, DALOAD);
+				mv.visitLdcInsn(codec.precisions[slot]);
+				mv.visitInsn(DDIV);
+				mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "round", "(D)J", false);
+				mv.visitMethodInsn(INVOKESTATIC, DATA_TYPE, "zigzag", "(J)J", false);
+				mv.visitMethodInsn(INVOKESTATIC, DATA_TYPE, "writeVarLong", "(L"+BUF+";J)V", false);
+				return;
+			case STRING:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, OBJECTS, slot, AALOAD);
+				mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+				mv.visitMethodInsn(INVOKESTATIC, WIRE_FORMAT, "writeUTF8String", "(L"+BUF+";Ljava/lang/String;)V", false);
+				return;
+			case INTERNED_STRING:
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, OBJECTS, slot, AALOAD);
+				mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+				mv.visitVarInsn(ALOAD, STRINGS);
+				mv.visitMethodInsn(INVOKESTATIC, DICTIONARY, "write", "(L"+BUF+";Ljava/lang/String;L"+DICTIONARY+";)V", false);
+				return;
+			default:
+				break;
+		}
+		// everything else calls the type's own writer, which is still worth
+		// it, since this call site only ever sees that one writer
+		switch (type.storage) {
+			case LONG:
+				typeField(mv, type, "longWriter", BiLongConsumer.class);
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, LONGS, slot, LALOAD);
+				invokeInterface(mv, BiLongConsumer.class, "accept", "(Ljava/lang/Object;J)V");
+				break;
+			case DOUBLE:
+				typeField(mv, type, "doubleWriter", BiDoubleConsumer.class);
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, DOUBLES, slot, DALOAD);
+				invokeInterface(mv, BiDoubleConsumer.class, "accept", "(Ljava/lang/Object;D)V");
+				break;
+			default:
+				typeField(mv, type, "writer", BiConsumer.class);
+				mv.visitVarInsn(ALOAD, buf);
+				loadSlot(mv, OBJECTS, slot, AALOAD);
+				invokeInterface(mv, BiConsumer.class, "accept", "(Ljava/lang/Object;Ljava/lang/Object;)V");
+				break;
+		}
+	}
+
+	/**
+	 * Emits the same thing {@link PacketCodec}'s readSlot does for the
+	 * given slot.
+	 */
+	private static void read(MethodVisitor mv, PacketCodec codec, int slot, int buf) {
+		DataType type = codec.types[slot];
+		switch (type) {
+			case UINT_8:
+				readInt(mv, slot, buf, "readUnsignedByte", "S");
+				return;
+			case INT_8:
+				readInt(mv, slot, buf, "readByte", "B");
+				return;
+			case UINT_16:
+				readInt(mv, slot, buf, "readUnsignedShort", "I");
+				return;
+			case INT_16:
+				readInt(mv, slot, buf, "readShort", "S");
+				return;
+			case UINT_24:
+				readInt(mv, slot, buf, "readUnsignedMedium", "I");
+				return;
+			case INT_24:
+				readInt(mv, slot, buf, "readMedium", "I");
+				return;
+			case UINT_32:
+				readInt(mv, slot, buf, "readUnsignedInt", "J");
+				return;
+			case INT_32:
+				readInt(mv, slot, buf, "readInt", "I");
+				return;
+			case INT_64:
+				readInt(mv, slot, buf, "readLong", "J");
+				return;
+			case FLOAT_32:
+				slotRef(mv, DOUBLES, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "readFloat", "()F", false);
+				mv.visitInsn(F2D);
+				mv.visitInsn(DASTORE);
+				return;
+			case FLOAT_64:
+				slotRef(mv, DOUBLES, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "readDouble", "()D", false);
+				mv.visitInsn(DASTORE);
+				return;
+			case VARINT:
+				slotRef(mv, LONGS, slot);
+				readVarInt(mv, buf);
+				mv.visitInsn(I2L);
+				mv.visitInsn(LASTORE);
+				return;
+			case VARINT_ZIGZAG:
+				// (i >>> 1) ^ -(i & 1)
+				slotRef(mv, LONGS, slot);
+				readVarInt(mv, buf);
+				mv.visitInsn(DUP);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IUSHR);
+				mv.visitInsn(SWAP);
+				mv.visitInsn(ICONST_1);
+				mv.visitInsn(IAND);
+				mv.visitInsn(INEG);
+				mv.visitInsn(IXOR);
+				mv.visitInsn(I2L);
+				mv.visitInsn(LASTORE);
+				return;
+			case FIXED:
+				slotRef(mv, DOUBLES, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				mv.visitMethodInsn(INVOKESTATIC, DATA_TYPE, "readVarLong", "(L"+BUF+";)J", false);
+				mv.visitMethodInsn(INVOKESTATIC, DATA_TYPE, "unzigzag", "(J)J", false);
+				mv.visitInsn(L2D);
+				mv.visitLdcInsn(codec.precisions[slot]);
+				mv.visitInsn(DMUL);
+				mv.visitInsn(DASTORE);
+				return;
+			case STRING:
+				slotRef(mv, OBJECTS, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				mv.visitMethodInsn(INVOKESTATIC, WIRE_FORMAT, "readUTF8String", "(L"+BUF+";)Ljava/lang/String;", false);
+				mv.visitInsn(AASTORE);
+				return;
+			case INTERNED_STRING:
+				slotRef(mv, OBJECTS, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				mv.visitVarInsn(ALOAD, STRINGS);
+				mv.visitMethodInsn(INVOKESTATIC, DICTIONARY, "read", "(L"+BUF+";L"+DICTIONARY+";)Ljava/lang/String;", false);
+				mv.visitInsn(AASTORE);
+				return;
+			case ARBITRARY:
+				// left as a slice of the payload, like the interpreted codec
+				slotRef(mv, OBJECTS, slot);
+				mv.visitVarInsn(ALOAD, buf);
+				readVarInt(mv, buf);
+				mv.visitMethodInsn(INVOKEVIRTUAL, BUF, "readSlice", "(I)L"+BUF+";", false);
+				mv.visitInsn(AASTORE);
+				return;
+			default:
+				break;
+		}
+		switch (type.storage) {
+			case LONG:
+				slotRef(mv, LONGS, slot);
+				typeField(mv, type, "longReader", ToLongFunction.class);
+				mv.visitVarInsn(ALOAD, buf);
+				invokeInterface(mv, ToLongFunction.class, "applyAsLong", "(Ljava/lang/Object;)J");
+				mv.visitInsn(LASTORE);
+				break;
+			case DOUBLE:
+				slotRef(mv, DOUBLES, slot);
+				typeField(mv, type, "doubleReader", ToDoubleFunction.class);
+				mv.visitVarInsn(ALOAD, buf);
+				invokeInterface(mv, ToDoubleFunction.class, "applyAsDouble", "(Ljava/lang/Object;)D");
+				mv.visitInsn(DASTORE);
+				break;
+			default:
+				slotRef(mv, OBJECTS, slot);
+				typeField(mv, type, "reader", Function.class);
+				mv.visitVarInsn(ALOAD, buf);
+				invokeInterface(mv, Function.class, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;");
+				mv.visitInsn(AASTORE);
+				break;
+		}
+	}
+
+	/** writes the given long slot with a write method taking an int */
+	private static void writeInt(MethodVisitor mv, int slot, int buf, String method) {
+		mv.visitVarInsn(ALOAD, buf);
+		loadSlot(mv, LONGS, slot, LALOAD);
+		mv.visitInsn(L2I);
+		mv.visitMethodInsn(INVOKEVIRTUAL, BUF, method, "(I)L"+BUF+";", false);
+		mv.visitInsn(POP);
+	}
+
+	/** reads the given long slot with a read method returning the given primitive */
+	private static void readInt(MethodVisitor mv, int slot, int buf, String method, String returns) {
+		slotRef(mv, LONGS, slot);
+		mv.visitVarInsn(ALOAD, buf);
+		mv.visitMethodInsn(INVOKEVIRTUAL, BUF, method, "()"+returns, false);
+		if (!"J".equals(returns)) {
+			mv.visitInsn(I2L);
+		}
+		mv.visitInsn(LASTORE);
+	}
+
+	/** buf and an int are on the stack */
+	private static void writeVarInt(MethodVisitor mv) {
+		mv.visitInsn(ICONST_5);
+		mv.visitMethodInsn(INVOKESTATIC, WIRE_FORMAT, "writeVarInt", "(L"+BUF+";II)V", false);
+	}
+
+	private static void readVarInt(MethodVisitor mv, int buf) {
+		mv.visitVarInsn(ALOAD, buf);
+		mv.visitInsn(ICONST_5);
+		mv.visitMethodInsn(INVOKESTATIC, WIRE_FORMAT, "readVarInt", "(L"+BUF+";I)I", false);
+	}
+
+	private static void loadSlot(MethodVisitor mv, int array, int slot, int load) {
+		slotRef(mv, array, slot);
+		mv.visitInsn(load);
+	}
+
+	/** pushes the given array and slot index, ready for a load or store */
+	private static void slotRef(MethodVisitor mv, int array, int slot) {
+		mv.visitVarInsn(ALOAD, array);
+		push(mv, slot);
+	}
+
+	private static void typeField(MethodVisitor mv, DataType type, String field, Class<?> fieldType) {
+		mv.visitFieldInsn(GETSTATIC, DATA_TYPE, type.name(), "L"+DATA_TYPE+";");
+		mv.visitFieldInsn(GETFIELD, DATA_TYPE, field, Type.getDescriptor(fieldType));
+	}
+
+	private static void invokeInterface(MethodVisitor mv, Class<?> owner, String method, String desc) {
+		mv.visitMethodInsn(INVOKEINTERFACE, Type.getInternalName(owner), method, desc, true);
+	}
+
+	private static void push(MethodVisitor mv, int i) {
+		if (i <= 5) {
+			mv.visitInsn(ICONST_0+i);
+		} else if (i <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, i);
+		} else if (i <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, i);
+		} else {
+			mv.visitLdcInsn(i);
+		}
+	}
+
+}
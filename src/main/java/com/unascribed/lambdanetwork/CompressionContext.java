@@ -0,0 +1,91 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * One connection's deflate streams. Every frame is sync flushed instead of
+ * finished, so the dictionary carries over and later frames can refer back
+ * to data in earlier ones. That only works if frames are inflated in the
+ * same order they were deflated, so callers have to hold the connection's
+ * lock from deflating a frame until it has been handed to the network.
+ */
+final class CompressionContext {
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] input = new byte[512];
+	private final byte[] output = new byte[8192];
+
+	/**
+	 * Deflates the readable bytes of the source into the destination,
+	 * without changing the source's reader index.
+	 */
+	void deflate(ByteBuf src, ByteBuf dst, int level) {
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		int len = src.readableBytes();
+		if (src.hasArray()) {
+			deflater.setInput(src.array(), src.arrayOffset()+src.readerIndex(), len);
+		} else {
+			src.getBytes(src.readerIndex(), input(len), 0, len);
+			deflater.setInput(input, 0, len);
+		}
+		while (true) {
+			int n = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+			dst.writeBytes(output, 0, n);
+			// a sync flush that fills the output may have more to give
+			if (n < output.length) break;
+		}
+	}
+
+	/**
+	 * Inflates the readable bytes of the source into the destination, which
+	 * must come out to exactly the given length.
+	 */
+	void inflate(ByteBuf src, ByteBuf dst, int length) throws DataFormatException {
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		int len = src.readableBytes();
+		if (src.hasArray()) {
+			inflater.setInput(src.array(), src.arrayOffset()+src.readerIndex(), len);
+		} else {
+			src.getBytes(src.readerIndex(), input(len), 0, len);
+			inflater.setInput(input, 0, len);
+		}
+		src.skipBytes(len);
+		int written = 0;
+		while (true) {
+			// keep going after the last byte, to consume the flush marker
+			int n = inflater.inflate(output);
+			if (n == 0) {
+				if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()) break;
+			} else if (written+n > length) {
+				throw new DataFormatException("Compressed frame is longer than its declared "+length+" bytes");
+			} else {
+				dst.writeBytes(output, 0, n);
+				written += n;
+			}
+		}
+		if (written != length) {
+			throw new DataFormatException("Compressed frame is shorter than its declared "+length+" bytes");
+		}
+	}
+
+	private byte[] input(int len) {
+		if (input.length < len) {
+			input = new byte[Math.max(len, input.length*2)];
+		}
+		return input;
+	}
+
+	void end() {
+		if (deflater != null) deflater.end();
+		if (inflater != null) inflater.end();
+	}
+
+}
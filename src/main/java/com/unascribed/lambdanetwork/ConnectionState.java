@@ -0,0 +1,156 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * What one channel remembers about one connection, for the features that
+ * need both ends to agree on what has been sent so far. Dropped along with
+ * the connection, so a reconnect always starts fresh.
+ * <p>
+ * Guarded by its own monitor; sends and reads for the same connection can
+ * happen on different threads.
+ */
+final class ConnectionState {
+	/** how many delta baselines to keep each way before forgetting the oldest */
+	private static final int MAX_BASELINES = 4096;
+	/** how many streamed packets one connection may be receiving at once */
+	private static final int MAX_INBOUND_TRANSFERS = 16;
+	/** how long to wait for a resync to be answered before asking again */
+	private static final long RESYNC_RETRY_NANOS = 1000000000L;
+
+	/** the last values sent for each delta encoded state */
+	final Map<StateKey, Slots> sentBaselines = new Baselines();
+	/** the last values received for each delta encoded state */
+	final Map<StateKey, Slots> receivedBaselines = new Baselines();
+	/** when a resync was asked for, for each packet still waiting on one */
+	final Map<PacketCodec, Long> resyncsRequested = Maps.newIdentityHashMap();
+	/** packets the other side asked to resync, until the state is resent */
+	final Set<PacketCodec> resendsPending = Sets.newIdentityHashSet();
+	
+	/** the interned strings sent over this connection */
+	final StringDictionary sentStrings = new StringDictionary();
+	/** the interned strings received over this connection */
+	final StringDictionary receivedStrings = new StringDictionary();
+	
+	/** token buckets and queue counts of rate limited packets */
+	final Map<PacketCodec, InboundLimit> limits = Maps.newIdentityHashMap();
+	/** whether the connection's reads are paused, and until when */
+	boolean throttled;
+	long throttledUntil;
+	/** whether the player has already been kicked for going over a limit */
+	boolean kicked;
+	
+	/** streamed packets being reassembled, by transfer id */
+	final Map<Integer, ByteBuf> inboundTransfers = Maps.newHashMap();
+	
+	/** this connection's deflate streams, created on first use */
+	private CompressionContext compression;
+	private boolean closed;
+	
+	/**
+	 * @return this connection's compression streams, or null if the
+	 * 		connection has been closed
+	 */
+	CompressionContext compression() {
+		if (closed) return null;
+		if (compression == null) {
+			compression = new CompressionContext();
+		}
+		return compression;
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Frees everything this connection was holding on to. Called when the
+	 * connection closes.
+	 */
+	void close() {
+		closed = true;
+		sentBaselines.clear();
+		receivedBaselines.clear();
+		resyncsRequested.clear();
+		resendsPending.clear();
+		for (ByteBuf buf : inboundTransfers.values()) {
+			buf.release();
+		}
+		inboundTransfers.clear();
+		if (compression != null) {
+			compression.end();
+			compression = null;
+		}
+	}
+
+	/**
+	 * Adds the next piece of a streamed transfer, starting the transfer if
+	 * it's the first piece.
+	 * 
+	 * @return the whole payload once its last piece has arrived, owned by
+	 * 		the caller, or null if there's more to come
+	 * @throws IllegalArgumentException if the piece doesn't carry on from
+	 * 		where the transfer left off, which abandons the transfer
+	 */
+	ByteBuf addFragment(ByteBufAllocator alloc, int transfer, int total, int offset, ByteBuf piece) {
+		ByteBuf buf = inboundTransfers.get(transfer);
+		if (buf == null) {
+			if (offset != 0) {
+				throw new IllegalArgumentException("Streamed transfer "+transfer+" started at offset "+offset);
+			}
+			if (inboundTransfers.size() >= MAX_INBOUND_TRANSFERS) {
+				throw new IllegalArgumentException("Too many concurrent streamed transfers");
+			}
+			// grows as pieces arrive, up to the total
+			buf = alloc.heapBuffer(Math.min(total, LambdaChannel.MAX_FRAGMENT*2), total);
+			inboundTransfers.put(transfer, buf);
+		}
+		if (offset != buf.writerIndex() || piece.readableBytes() > total-offset || buf.maxCapacity() != total) {
+			inboundTransfers.remove(transfer);
+			buf.release();
+			throw new IllegalArgumentException("Streamed transfer "+transfer+" has a bad fragment at offset "+offset);
+		}
+		buf.writeBytes(piece);
+		if (buf.writerIndex() == total) {
+			inboundTransfers.remove(transfer);
+			return buf;
+		}
+		return null;
+	}
+	
+	/**
+	 * Notes that a resync of the given packet is being asked for, unless one
+	 * already is and hasn't been answered yet.
+	 * 
+	 * @return true if the resync should be sent, false if it would only
+	 * 		repeat the one on its way
+	 */
+	boolean requestResync(PacketCodec codec, long now) {
+		Long since = resyncsRequested.get(codec);
+		if (since != null && now-since < RESYNC_RETRY_NANOS) return false;
+		resyncsRequested.put(codec, now);
+		return true;
+	}
+
+	private static final class Baselines extends LinkedHashMap<StateKey, Slots> {
+		private static final long serialVersionUID = 1L;
+
+		Baselines() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<StateKey, Slots> eldest) {
+			return size() > MAX_BASELINES;
+		}
+	}
+
+}
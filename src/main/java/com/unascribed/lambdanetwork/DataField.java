@@ -0,0 +1,42 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on one data entry of a packet, from one of {@link PacketSpec}'s
+ * field methods such as {@link PacketSpec#intField(String)}. The key is
+ * looked up and its type checked once, when the handle is made, so setting
+ * or getting a value through a handle does neither. A handle works with any
+ * PendingPacket or Token for the packet it came from, including after the
+ * network is built.
+ */
+public abstract class DataField {
+	/** the spec the packet was declared with, shared by all of its clones */
+	final PacketSpec packet;
+	final String key;
+	final int slot;
+	
+	DataField(PacketSpec spec, String key) {
+		this.packet = spec.getOrigin();
+		this.key = key;
+		this.slot = spec.indexOf(key);
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * @return this entry's slot in the values of the given packet
+	 * @throws IllegalArgumentException if this handle isn't for that packet
+	 */
+	int slotIn(PacketSpec spec) {
+		if (spec.getOrigin() != packet) {
+			throw new IllegalArgumentException("Handle for '"+key+"' in packet '"+packet.getIdentifier()+"' can't be used with packet '"+spec.getIdentifier()+"'");
+		}
+		return slot;
+	}
+	
+	@Override
+	public String toString() {
+		return packet.getIdentifier()+"."+key;
+	}
+}
@@ -1,18 +1,32 @@
 package com.unascribed.lambdanetwork;
 
-import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.UUID;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.base.Utf8;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTSizeTracker;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraftforge.fml.common.network.ByteBufUtils;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.Vec3;
 
 public enum DataType {
 	/** variable-size protobuf integer, maximum 5 bytes */
-	VARINT(Integer.class,
-			(ByteBuf buf, Integer i) ->
-				ByteBufUtils.writeVarInt(buf, i, 5),
+	VARINT(
+			(ByteBuf buf, int i) ->
+				WireFormat.writeVarInt(buf, i, 5),
 			(ByteBuf buf) ->
-				ByteBufUtils.readVarInt(buf, 5),
+				WireFormat.readVarInt(buf, 5),
 			1,
 			ExternalType.INTEGER
 		),
@@ -21,10 +35,10 @@ public enum DataType {
 	 * variable-size protobuf zigzag integer, maximum 5 bytes. negative
 	 * numbers take up less space than in regular varints
 	 */
-	VARINT_ZIGZAG(Integer.class,
-			(ByteBuf buf, Integer i) -> ByteBufUtils.writeVarInt(buf, (i << 1) ^ (i >> 31), 5),
+	VARINT_ZIGZAG(
+			(ByteBuf buf, int i) -> WireFormat.writeVarInt(buf, (i << 1) ^ (i >> 31), 5),
 			(ByteBuf buf) -> {
-				int i = ByteBufUtils.readVarInt(buf, 5);
+				int i = WireFormat.readVarInt(buf, 5);
 				return (i >>> 1) ^ -(i & 1);
 			},
 			1,
@@ -37,26 +51,26 @@ public enum DataType {
 	INT_8(ByteBuf::writeByte, ByteBuf::readByte, 1, ExternalType.INTEGER),
 	
 	/** unsigned 16-bit (Java type: char, closest Java numeric type: int) */
-	UINT_16(Integer.class, ByteBuf::writeShort, ByteBuf::readUnsignedShort, 2, ExternalType.INTEGER),
+	UINT_16(ByteBuf::writeShort, ByteBuf::readUnsignedShort, 2, ExternalType.INTEGER),
 	/** signed 16-bit (Java type: short) */
 	INT_16(ByteBuf::writeShort, ByteBuf::readShort, 2, ExternalType.INTEGER),
 	
 	/** unsigned 24-bit (closest Java type: int) */
-	UINT_24(Integer.class, ByteBuf::writeMedium, ByteBuf::readUnsignedMedium, 3, ExternalType.INTEGER),
+	UINT_24(ByteBuf::writeMedium, ByteBuf::readUnsignedMedium, 3, ExternalType.INTEGER),
 	/** signed 24-bit (closest Java type: int) */
-	INT_24(Integer.class, ByteBuf::writeMedium, ByteBuf::readMedium, 3, ExternalType.INTEGER),
+	INT_24(ByteBuf::writeMedium, ByteBuf::readMedium, 3, ExternalType.INTEGER),
 	
 	/** unsigned 32-bit (closest Java type: long) */
 	UINT_32(ByteBuf::writeInt, ByteBuf::readUnsignedInt, 4, ExternalType.INTEGER),
 	/** signed 32-bit (Java type: int) */
-	INT_32(Integer.class, ByteBuf::writeInt, ByteBuf::readInt, 4, ExternalType.INTEGER),
+	INT_32(ByteBuf::writeInt, ByteBuf::readInt, 4, ExternalType.INTEGER),
 	
 	/**
 	 * signed 64-bit (Java type: long) - this is the largest integer
 	 * representable with Java primitives. if you need even more range, use
 	 * {@link ARBITRARY} and marshal to/from BigInteger.
 	 */
-	INT_64(Long.class, ByteBuf::writeLong, ByteBuf::readLong, 8, ExternalType.INTEGER),
+	INT_64((ByteBuf buf, long l) -> buf.writeLong(l), ByteBuf::readLong, 8, ExternalType.INTEGER),
 	
 	/**
 	 * true/false value - multiple booleans in one packet will be combined
@@ -64,34 +78,140 @@ public enum DataType {
 	 */
 	BOOLEAN(1, ExternalType.BOOLEAN), // handled specially for bitfield optimization
 	
+	/**
+	 * integer within a range given to {@link PacketSpec#with(int, int, String)}
+	 * - packed into the bitfield alongside the booleans, using only as many
+	 * bits as the range needs
+	 */
+	BOUNDED(0, ExternalType.INTEGER), // handled specially, like BOOLEAN
+	/**
+	 * constant of the enum given to {@link PacketSpec#with(Class, String)} -
+	 * packed into the bitfield by ordinal, like {@link #BOUNDED}
+	 */
+	ENUM(0, ExternalType.INTEGER, ExternalType.ENUM),
+	
 	/** 32-bit floating point value (Java type: float) */
-	FLOAT_32(Float.class, ByteBuf::writeFloat, ByteBuf::readFloat, 4, ExternalType.INTEGER, ExternalType.FLOATING),
+	FLOAT_32((ByteBuf buf, double d) -> buf.writeFloat((float)d), ByteBuf::readFloat, 4, ExternalType.INTEGER, ExternalType.FLOATING),
 	/**
 	 * 64-bit floating point value (Java type: double) - this is the largest
 	 * floating point representable with Java primitives. if you need even more
 	 * range or precision, use {@link ARBITRARY} and marshal to/from BigDecimal.
 	 */
-	FLOAT_64(Double.class, ByteBuf::writeDouble, ByteBuf::readDouble, 8, ExternalType.INTEGER, ExternalType.FLOATING),
+	FLOAT_64((ByteBuf buf, double d) -> buf.writeDouble(d), ByteBuf::readDouble, 8, ExternalType.INTEGER, ExternalType.FLOATING),
+	
+	/**
+	 * fixed-point number, in multiples of a precision given to
+	 * {@link PacketSpec#with(double, String)} - sent as a zigzag varlong, so
+	 * small values are small on the wire
+	 */
+	FIXED(Storage.DOUBLE, 1, ExternalType.INTEGER, ExternalType.FLOATING), // handled specially, needs its precision
+	/**
+	 * number within a range, in multiples of a precision given to
+	 * {@link PacketSpec#with(double, double, double, String)} - packed into
+	 * the bitfield like {@link #BOUNDED}, using only as many bits as there are
+	 * steps in the range
+	 */
+	QUANTIZED(Storage.DOUBLE, 0, ExternalType.INTEGER, ExternalType.FLOATING), // handled specially, like BOOLEAN
+	/**
+	 * angle in degrees, in 256ths of a turn (Java type: byte) - the same
+	 * precision vanilla uses for entity rotations. comes back between -180
+	 * and 180
+	 */
+	ANGLE((ByteBuf buf, double d) -> buf.writeByte((int)Math.round(d*256/360)), (ByteBuf buf) -> buf.readByte()*360/256D, 1, ExternalType.INTEGER, ExternalType.FLOATING),
+	
+	/** block position packed into a long, the same way as {@link BlockPos#toLong()} */
+	BLOCK_POS(BlockPos.class,
+			(ByteBuf buf, BlockPos pos) -> buf.writeLong(pos.toLong()),
+			(ByteBuf buf) -> BlockPos.fromLong(buf.readLong()),
+			8,
+			ExternalType.BLOCK_POS
+		),
+	/**
+	 * block position packed into a varlong, with the X and Z coordinates
+	 * interleaved - positions within a few hundred blocks of the origin, or
+	 * any position relative to another, take 4 or 5 bytes instead of 8
+	 */
+	BLOCK_POS_VARLONG(BlockPos.class,
+			(ByteBuf buf, BlockPos pos) -> writeVarLong(buf, packBlockPos(pos)),
+			(ByteBuf buf) -> unpackBlockPos(readVarLong(buf)),
+			1,
+			ExternalType.BLOCK_POS
+		),
+	/**
+	 * direction packed into 32 bits with an octahedral mapping, accurate to
+	 * within a few thousandths of a degree. comes back normalized; a zero
+	 * vector comes back pointing along +Z
+	 */
+	UNIT_VECTOR(Vec3.class, DataType::writeUnitVector, DataType::readUnitVector, 4, ExternalType.VECTOR),
+	/** UUID, as its most and least significant longs */
+	UUID(UUID.class,
+			(ByteBuf buf, UUID id) -> {
+				buf.writeLong(id.getMostSignificantBits());
+				buf.writeLong(id.getLeastSignificantBits());
+			},
+			(ByteBuf buf) -> new UUID(buf.readLong(), buf.readLong()),
+			16,
+			ExternalType.UUID
+		),
 	
 	
 	/** UTF-8 string (varint length-prefixed) */
-	STRING(String.class, ByteBufUtils::writeUTF8String, ByteBufUtils::readUTF8String, 1, ExternalType.STRING),
-	/** arbitrary data, i.e. a byte array (varint length-prefixed) */
-	ARBITRARY(byte[].class,
-			(ByteBuf buf, byte[] arr) -> {
-				ByteBufUtils.writeVarInt(buf, arr.length, 5);
-				buf.writeBytes(arr);
+	STRING(String.class, WireFormat::writeUTF8String, WireFormat::readUTF8String, 1, ExternalType.STRING),
+	/**
+	 * UTF-8 string that's remembered by both sides of a connection - the
+	 * first send of a string includes it along with an id, and later sends
+	 * of the same string over the same connection only send the id. the
+	 * receiver gets the same String instance every time. for strings that
+	 * repeat a lot, such as registry names or player names. packets that are
+	 * {@link PacketSpec#coalescedBy coalesced} or {@link PacketSpec#streamed()
+	 * streamed}, or sent as vanilla packets, always send these inline
+	 */
+	INTERNED_STRING(String.class,
+			(ByteBuf buf, String str) -> StringDictionary.write(buf, str, null),
+			(ByteBuf buf) -> StringDictionary.read(buf, null),
+			2,
+			ExternalType.STRING
+		),
+	/**
+	 * arbitrary data, i.e. a byte array (varint length-prefixed). can also
+	 * be given as a ByteBuf, which is sent without being copied into an array
+	 */
+	ARBITRARY(Object.class,
+			(ByteBuf buf, Object o) -> {
+				if (o instanceof ByteBuf) {
+					ByteBuf src = (ByteBuf)o;
+					WireFormat.writeVarInt(buf, src.readableBytes(), 5);
+					buf.writeBytes(src, src.readerIndex(), src.readableBytes());
+				} else {
+					byte[] arr = (byte[])o;
+					WireFormat.writeVarInt(buf, arr.length, 5);
+					buf.writeBytes(arr);
+				}
 			},
 			(ByteBuf buf) -> {
-				byte[] arr = new byte[ByteBufUtils.readVarInt(buf, 5)];
+				byte[] arr = new byte[readLength(buf, 1)];
 				buf.readBytes(arr);
 				return arr;
 			},
 			1,
 			ExternalType.DATA
 		),
+	/** array of signed 32-bit integers (varint length-prefixed) */
+	INT_ARRAY(int[].class, DataType::writeIntArray, DataType::readIntArray, 1, ExternalType.INT_ARRAY),
+	/**
+	 * array of variable-size protobuf integers (varint length-prefixed) -
+	 * smaller than {@link #INT_ARRAY} when most of the values are small and
+	 * positive, but slower to encode and decode
+	 */
+	VARINT_ARRAY(int[].class, DataType::writeVarIntArray, DataType::readVarIntArray, 1, ExternalType.INT_ARRAY),
+	/** array of signed 16-bit integers (varint length-prefixed) */
+	SHORT_ARRAY(short[].class, DataType::writeShortArray, DataType::readShortArray, 1, ExternalType.SHORT_ARRAY),
+	/** array of signed 64-bit integers (varint length-prefixed) */
+	LONG_ARRAY(long[].class, DataType::writeLongArray, DataType::readLongArray, 1, ExternalType.LONG_ARRAY),
+	/** array of 32-bit floating point values (varint length-prefixed) */
+	FLOAT_ARRAY(float[].class, DataType::writeFloatArray, DataType::readFloatArray, 1, ExternalType.FLOAT_ARRAY),
 	/** arbitrary structured NBT data */
-	NBT_COMPOUND(NBTTagCompound.class, ByteBufUtils::writeTag, ByteBufUtils::readTag, 5, ExternalType.NBT),
+	NBT_COMPOUND(NBTTagCompound.class, DataType::writeTag, DataType::readTag, 5, ExternalType.NBT),
 	;
 
 	/** alias for INT_8 */
@@ -115,51 +235,514 @@ public enum DataType {
 		BOOLEAN,
 		STRING,
 		NBT,
-		DATA
+		DATA,
+		ENUM,
+		BLOCK_POS,
+		VECTOR,
+		UUID,
+		INT_ARRAY,
+		SHORT_ARRAY,
+		LONG_ARRAY,
+		FLOAT_ARRAY
 	}
 	
+	/**
+	 * Where values of a DataType live in a pending packet or token. Numeric
+	 * and boolean values are kept in primitive slots so they never get boxed
+	 * on the way to or from the wire.
+	 */
+	enum Storage {
+		LONG,
+		DOUBLE,
+		REFERENCE
+	}
+	
+	/**
+	 * Boxing writer and reader, usable with any DataType other than the
+	 * bit-packed BOOLEAN, BOUNDED, ENUM and QUANTIZED, and FIXED, which
+	 * depends on its precision. LambdaNetwork itself uses the unboxed variants for numeric
+	 * types.
+	 */
 	public final BiConsumer<ByteBuf, Object> writer;
 	public final Function<ByteBuf, ?> reader;
 	
+	final Storage storage;
+	final BiLongConsumer<ByteBuf> longWriter;
+	final ToLongFunction<ByteBuf> longReader;
+	final BiDoubleConsumer<ByteBuf> doubleWriter;
+	final ToDoubleFunction<ByteBuf> doubleReader;
+	
 	public final int minimumSize;
 	
-	private final ImmutableList<ExternalType> validTypes;
+	private final EnumSet<ExternalType> validTypes;
 	
 	private DataType(int minimumSize, ExternalType... validTypes) {
-		writer = null;
-		reader = null;
-		this.validTypes = ImmutableList.copyOf(validTypes);
+		this(Storage.LONG, minimumSize, validTypes);
+	}
+	
+	private DataType(Storage storage, int minimumSize, ExternalType... validTypes) {
+		this.storage = storage;
+		this.writer = null;
+		this.reader = null;
+		this.longWriter = null;
+		this.longReader = null;
+		this.doubleWriter = null;
+		this.doubleReader = null;
+		this.validTypes = toSet(validTypes);
 		this.minimumSize = minimumSize;
 	}
 	
 	private <T> DataType(Class<T> clazz, BiConsumer<ByteBuf, T> writer, Function<ByteBuf, T> reader, int minimumSize, ExternalType... validTypes) {
+		this.storage = Storage.REFERENCE;
 		this.writer = (BiConsumer<ByteBuf, Object>) writer;
 		this.reader = reader;
-		this.validTypes = ImmutableList.copyOf(validTypes);
+		this.longWriter = null;
+		this.longReader = null;
+		this.doubleWriter = null;
+		this.doubleReader = null;
+		this.validTypes = toSet(validTypes);
 		this.minimumSize = minimumSize;
 	}
 	
-	private <T> DataType(BiIntConsumer<ByteBuf> writer, Function<ByteBuf, T> reader, int minimumSize, ExternalType... validTypes) {
-		this.writer = (buf, i) -> writer.accept(buf, (int)i);
-		this.reader = reader;
-		this.validTypes = ImmutableList.copyOf(validTypes);
-		this.minimumSize = minimumSize;
+	private DataType(BiIntConsumer<ByteBuf> writer, ToLongFunction<ByteBuf> reader, int minimumSize, ExternalType... validTypes) {
+		this((BiLongConsumer<ByteBuf>)(buf, l) -> writer.accept(buf, (int)l), reader, minimumSize, validTypes);
 	}
 	
-	private <T> DataType(BiLongConsumer<ByteBuf> writer, Function<ByteBuf, T> reader, int minimumSize, ExternalType... validTypes) {
-		this.writer = (buf, i) -> writer.accept(buf, (long)i);
-		this.reader = reader;
-		this.validTypes = ImmutableList.copyOf(validTypes);
+	private DataType(BiLongConsumer<ByteBuf> writer, ToLongFunction<ByteBuf> reader, int minimumSize, ExternalType... validTypes) {
+		this.storage = Storage.LONG;
+		this.writer = (buf, o) -> writer.accept(buf, ((Number)o).longValue());
+		this.reader = (buf) -> reader.applyAsLong(buf);
+		this.longWriter = writer;
+		this.longReader = reader;
+		this.doubleWriter = null;
+		this.doubleReader = null;
+		this.validTypes = toSet(validTypes);
 		this.minimumSize = minimumSize;
 	}
 	
-	private <T> DataType(BiDoubleConsumer<ByteBuf> writer, Function<ByteBuf, T> reader, int minimumSize, ExternalType... validTypes) {
-		this.writer = (buf, i) -> writer.accept(buf, (double)i);
-		this.reader = reader;
-		this.validTypes = ImmutableList.copyOf(validTypes);
+	private DataType(BiDoubleConsumer<ByteBuf> writer, ToDoubleFunction<ByteBuf> reader, int minimumSize, ExternalType... validTypes) {
+		this.storage = Storage.DOUBLE;
+		this.writer = (buf, o) -> writer.accept(buf, ((Number)o).doubleValue());
+		this.reader = (buf) -> reader.applyAsDouble(buf);
+		this.longWriter = null;
+		this.longReader = null;
+		this.doubleWriter = writer;
+		this.doubleReader = reader;
+		this.validTypes = toSet(validTypes);
 		this.minimumSize = minimumSize;
 	}
 	
+	private static EnumSet<ExternalType> toSet(ExternalType[] types) {
+		EnumSet<ExternalType> set = EnumSet.noneOf(ExternalType.class);
+		set.addAll(Arrays.asList(types));
+		return set;
+	}
+	
+	
+	/**
+	 * NBT can't be sized without serializing it, so encode buffers reserve
+	 * this much for each compound and grow if it turns out to be bigger.
+	 */
+	static final int NBT_SIZE_ESTIMATE = 64;
+	
+	/**
+	 * @return true if values of this type go in the bitfield instead of
+	 * 		being written on their own
+	 */
+	boolean isPacked() {
+		return this == BOOLEAN || isBounded();
+	}
+	
+	/**
+	 * @return true if values of this type are limited to a range declared
+	 * 		on the packet
+	 */
+	boolean isBounded() {
+		return this == BOUNDED || this == ENUM || this == QUANTIZED;
+	}
+	
+	/**
+	 * @return true if fields of this type need more than the type to be
+	 * 		declared, such as a range or precision
+	 */
+	boolean isParameterized() {
+		return isBounded() || this == FIXED;
+	}
+	
+	/**
+	 * @return true if values of this type don't always take up
+	 * 		{@link #minimumSize} bytes on the wire
+	 */
+	boolean isVariableSize() {
+		switch (this) {
+			case VARINT:
+			case VARINT_ZIGZAG:
+			case FIXED:
+			case BLOCK_POS_VARLONG:
+			case STRING:
+			case INTERNED_STRING:
+			case ARBITRARY:
+			case INT_ARRAY:
+			case VARINT_ARRAY:
+			case SHORT_ARRAY:
+			case LONG_ARRAY:
+			case FLOAT_ARRAY:
+			case NBT_COMPOUND:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	/**
+	 * @return the number of bytes the given value of this type takes up on
+	 * 		the wire, for types stored in long slots
+	 */
+	int sizeOf(long value) {
+		switch (this) {
+			case VARINT:
+				return WireFormat.varIntByteCount((int)value);
+			case VARINT_ZIGZAG:
+				int i = (int)value;
+				return WireFormat.varIntByteCount((i << 1) ^ (i >> 31));
+			default:
+				return minimumSize;
+		}
+	}
+	
+	/**
+	 * @return the number of bytes the given value of this type takes up on
+	 * 		the wire, for types stored in reference slots. exact for
+	 * 		everything except NBT, which is estimated, and interned strings,
+	 * 		which are sized as if sent inline
+	 */
+	int sizeOf(Object value) {
+		switch (this) {
+			case STRING: {
+				int len = utf8Length((String)value);
+				return WireFormat.varIntByteCount(len)+len;
+			}
+			case INTERNED_STRING: {
+				// as if inline; references are smaller, unless the id is big
+				// and the string is tiny
+				int len = utf8Length((String)value);
+				return 1+WireFormat.varIntByteCount(len)+len;
+			}
+			case ARBITRARY: {
+				int len = value instanceof ByteBuf ? ((ByteBuf)value).readableBytes() : ((byte[])value).length;
+				return WireFormat.varIntByteCount(len)+len;
+			}
+			case BLOCK_POS_VARLONG:
+				return varLongSize(packBlockPos((BlockPos)value));
+			case INT_ARRAY:
+			case FLOAT_ARRAY: {
+				int len = value instanceof int[] ? ((int[])value).length : ((float[])value).length;
+				return WireFormat.varIntByteCount(len)+len*4;
+			}
+			case VARINT_ARRAY: {
+				int[] arr = (int[])value;
+				int size = WireFormat.varIntByteCount(arr.length);
+				for (int i = 0; i < arr.length; i++) {
+					size += WireFormat.varIntByteCount(arr[i]);
+				}
+				return size;
+			}
+			case SHORT_ARRAY: {
+				int len = ((short[])value).length;
+				return WireFormat.varIntByteCount(len)+len*2;
+			}
+			case LONG_ARRAY: {
+				int len = ((long[])value).length;
+				return WireFormat.varIntByteCount(len)+len*8;
+			}
+			case NBT_COMPOUND:
+				return NBT_SIZE_ESTIMATE;
+			default:
+				return minimumSize;
+		}
+	}
+	
+	
+	static void writeVarLong(ByteBuf buf, long l) {
+		while ((l & ~0x7FL) != 0) {
+			buf.writeByte((int)(l & 0x7F) | 0x80);
+			l >>>= 7;
+		}
+		buf.writeByte((int)l);
+	}
+	
+	static long readVarLong(ByteBuf buf) {
+		long l = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = buf.readUnsignedByte();
+			l |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return l;
+		}
+		throw new IllegalArgumentException("Varlong too big");
+	}
+	
+	static int varLongSize(long l) {
+		int size = 1;
+		while ((l & ~0x7FL) != 0) {
+			size++;
+			l >>>= 7;
+		}
+		return size;
+	}
+	
+	static long zigzag(long l) {
+		return (l << 1) ^ (l >> 63);
+	}
+	
+	static long unzigzag(long l) {
+		return (l >>> 1) ^ -(l & 1);
+	}
+	
+	/*
+	 * zigzagged X and Z interleaved bit by bit, above 12 bits of zigzagged Y,
+	 * so the varlong only grows with the largest coordinate instead of
+	 * always paying for X being in the top bits
+	 */
+	static long packBlockPos(BlockPos pos) {
+		long xz = interleave(zigzag(pos.getX()) & 0xFFFFFFFFL) | (interleave(zigzag(pos.getZ()) & 0xFFFFFFFFL) << 1);
+		return (xz << 12) | (zigzag(pos.getY()) & 0xFFF);
+	}
+	
+	static BlockPos unpackBlockPos(long l) {
+		long xz = l >>> 12;
+		return new BlockPos(
+				(int)unzigzag(deinterleave(xz)),
+				(int)unzigzag(l & 0xFFF),
+				(int)unzigzag(deinterleave(xz >>> 1)));
+	}
+	
+	/** spreads the low 32 bits of the given value out over the even bits */
+	private static long interleave(long l) {
+		l = (l | (l << 16)) & 0x0000FFFF0000FFFFL;
+		l = (l | (l << 8)) & 0x00FF00FF00FF00FFL;
+		l = (l | (l << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		l = (l | (l << 2)) & 0x3333333333333333L;
+		l = (l | (l << 1)) & 0x5555555555555555L;
+		return l;
+	}
+	
+	private static long deinterleave(long l) {
+		l &= 0x5555555555555555L;
+		l = (l | (l >>> 1)) & 0x3333333333333333L;
+		l = (l | (l >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		l = (l | (l >>> 4)) & 0x00FF00FF00FF00FFL;
+		l = (l | (l >>> 8)) & 0x0000FFFF0000FFFFL;
+		l = (l | (l >>> 16)) & 0x00000000FFFFFFFFL;
+		return l;
+	}
+	
+	/*
+	 * NBT is written the same way vanilla's PacketBuffer writes it, which is
+	 * what FML's ByteBufUtils used to do for us: a lone 0 for null, otherwise
+	 * the uncompressed tag, read back with vanilla's 2MiB limit
+	 */
+	private static void writeTag(ByteBuf buf, NBTTagCompound tag) {
+		if (tag == null) {
+			buf.writeByte(0);
+			return;
+		}
+		try {
+			CompressedStreamTools.write(tag, new ByteBufOutputStream(buf));
+		} catch (IOException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+	
+	private static NBTTagCompound readTag(ByteBuf buf) {
+		if (buf.getByte(buf.readerIndex()) == 0) {
+			buf.skipBytes(1);
+			return null;
+		}
+		try {
+			return CompressedStreamTools.read(new ByteBufInputStream(buf), new NBTSizeTracker(2097152L));
+		} catch (IOException e) {
+			throw Throwables.propagate(e);
+		}
+	}
+	
+	/*
+	 * projects the vector onto an octahedron, then folds the lower half of
+	 * the octahedron over the upper half, leaving two coordinates in [-1, 1]
+	 */
+	private static void writeUnitVector(ByteBuf buf, Vec3 vec) {
+		double norm = Math.abs(vec.xCoord)+Math.abs(vec.yCoord)+Math.abs(vec.zCoord);
+		double u = 0;
+		double v = 0;
+		if (norm > 0) {
+			u = vec.xCoord/norm;
+			v = vec.yCoord/norm;
+			if (vec.zCoord < 0) {
+				double fu = (1-Math.abs(v))*sign(u);
+				v = (1-Math.abs(u))*sign(v);
+				u = fu;
+			}
+		}
+		buf.writeShort((int)Math.round(u*Short.MAX_VALUE));
+		buf.writeShort((int)Math.round(v*Short.MAX_VALUE));
+	}
+	
+	private static Vec3 readUnitVector(ByteBuf buf) {
+		double u = buf.readShort()/(double)Short.MAX_VALUE;
+		double v = buf.readShort()/(double)Short.MAX_VALUE;
+		double z = 1-Math.abs(u)-Math.abs(v);
+		if (z < 0) {
+			double fu = (1-Math.abs(v))*sign(u);
+			v = (1-Math.abs(u))*sign(v);
+			u = fu;
+		}
+		double len = Math.sqrt(u*u+v*v+z*z);
+		return new Vec3(u/len, v/len, z/len);
+	}
+	
+	private static double sign(double d) {
+		return d >= 0 ? 1 : -1;
+	}
+	
+	/*
+	 * the fixed-width arrays are copied in bulk through a big-endian
+	 * ByteBuffer view, the same byte order as ByteBuf.writeInt and friends.
+	 * heap buffers are written through their backing array; anything else
+	 * falls back to writing one element at a time, since nioBuffer is
+	 * allowed to return a copy. reads can always use nioBuffer
+	 */
+	
+	private static ByteBuffer writeView(ByteBuf buf, int len, int width) {
+		WireFormat.writeVarInt(buf, len, 5);
+		int bytes = len*width;
+		buf.ensureWritable(bytes);
+		if (!buf.hasArray()) return null;
+		ByteBuffer view = ByteBuffer.wrap(buf.array(), buf.arrayOffset()+buf.writerIndex(), bytes).order(ByteOrder.BIG_ENDIAN);
+		buf.writerIndex(buf.writerIndex()+bytes);
+		return view;
+	}
+	
+	/**
+	 * Reads an array length, and checks that many elements of the given
+	 * width could fit in the rest of the packet, before anything is
+	 * allocated for them.
+	 */
+	private static int readLength(ByteBuf buf, int width) {
+		int len = WireFormat.readVarInt(buf, 5);
+		if (len < 0 || len > buf.readableBytes()/width) {
+			throw new IllegalArgumentException("Array of length "+len+" is bigger than the rest of the packet");
+		}
+		return len;
+	}
+	
+	/**
+	 * @param len a length from {@link #readLength}
+	 */
+	private static ByteBuffer readView(ByteBuf buf, int len, int width) {
+		int bytes = len*width;
+		ByteBuffer view = buf.nioBuffer(buf.readerIndex(), bytes).order(ByteOrder.BIG_ENDIAN);
+		buf.skipBytes(bytes);
+		return view;
+	}
+	
+	private static void writeIntArray(ByteBuf buf, int[] arr) {
+		ByteBuffer view = writeView(buf, arr.length, 4);
+		if (view != null) {
+			view.asIntBuffer().put(arr);
+		} else {
+			for (int i = 0; i < arr.length; i++) {
+				buf.writeInt(arr[i]);
+			}
+		}
+	}
+	
+	private static int[] readIntArray(ByteBuf buf) {
+		int len = readLength(buf, 4);
+		int[] arr = new int[len];
+		readView(buf, len, 4).asIntBuffer().get(arr);
+		return arr;
+	}
+	
+	private static void writeVarIntArray(ByteBuf buf, int[] arr) {
+		WireFormat.writeVarInt(buf, arr.length, 5);
+		for (int i = 0; i < arr.length; i++) {
+			WireFormat.writeVarInt(buf, arr[i], 5);
+		}
+	}
+	
+	private static int[] readVarIntArray(ByteBuf buf) {
+		// every varint is at least a byte
+		int len = readLength(buf, 1);
+		int[] arr = new int[len];
+		for (int i = 0; i < len; i++) {
+			arr[i] = WireFormat.readVarInt(buf, 5);
+		}
+		return arr;
+	}
+	
+	private static void writeShortArray(ByteBuf buf, short[] arr) {
+		ByteBuffer view = writeView(buf, arr.length, 2);
+		if (view != null) {
+			view.asShortBuffer().put(arr);
+		} else {
+			for (int i = 0; i < arr.length; i++) {
+				buf.writeShort(arr[i]);
+			}
+		}
+	}
+	
+	private static short[] readShortArray(ByteBuf buf) {
+		int len = readLength(buf, 2);
+		short[] arr = new short[len];
+		readView(buf, len, 2).asShortBuffer().get(arr);
+		return arr;
+	}
+	
+	private static void writeLongArray(ByteBuf buf, long[] arr) {
+		ByteBuffer view = writeView(buf, arr.length, 8);
+		if (view != null) {
+			view.asLongBuffer().put(arr);
+		} else {
+			for (int i = 0; i < arr.length; i++) {
+				buf.writeLong(arr[i]);
+			}
+		}
+	}
+	
+	private static long[] readLongArray(ByteBuf buf) {
+		int len = readLength(buf, 8);
+		long[] arr = new long[len];
+		readView(buf, len, 8).asLongBuffer().get(arr);
+		return arr;
+	}
+	
+	private static void writeFloatArray(ByteBuf buf, float[] arr) {
+		ByteBuffer view = writeView(buf, arr.length, 4);
+		if (view != null) {
+			view.asFloatBuffer().put(arr);
+		} else {
+			for (int i = 0; i < arr.length; i++) {
+				buf.writeFloat(arr[i]);
+			}
+		}
+	}
+	
+	private static float[] readFloatArray(ByteBuf buf) {
+		int len = readLength(buf, 4);
+		float[] arr = new float[len];
+		readView(buf, len, 4).asFloatBuffer().get(arr);
+		return arr;
+	}
+	
+	private static int utf8Length(String str) {
+		try {
+			return Utf8.encodedLength(str);
+		} catch (IllegalArgumentException e) {
+			// unpaired surrogates get replaced when encoding, so let the
+			// encoder tell us how long it comes out
+			return str.getBytes(Charsets.UTF_8).length;
+		}
+	}
+	
 	
 	public boolean isValidForInteger() {
 		return validTypes.contains(ExternalType.INTEGER);
@@ -184,4 +767,36 @@ public enum DataType {
 	public boolean isValidForData() {
 		return validTypes.contains(ExternalType.DATA); 
 	}
+	
+	public boolean isValidForEnum() {
+		return validTypes.contains(ExternalType.ENUM); 
+	}
+	
+	public boolean isValidForBlockPos() {
+		return validTypes.contains(ExternalType.BLOCK_POS); 
+	}
+	
+	public boolean isValidForVector() {
+		return validTypes.contains(ExternalType.VECTOR); 
+	}
+	
+	public boolean isValidForUUID() {
+		return validTypes.contains(ExternalType.UUID); 
+	}
+	
+	public boolean isValidForIntArray() {
+		return validTypes.contains(ExternalType.INT_ARRAY); 
+	}
+	
+	public boolean isValidForShortArray() {
+		return validTypes.contains(ExternalType.SHORT_ARRAY); 
+	}
+	
+	public boolean isValidForLongArray() {
+		return validTypes.contains(ExternalType.LONG_ARRAY); 
+	}
+	
+	public boolean isValidForFloatArray() {
+		return validTypes.contains(ExternalType.FLOAT_ARRAY); 
+	}
 }
\ No newline at end of file
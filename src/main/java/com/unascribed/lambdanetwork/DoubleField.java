@@ -0,0 +1,15 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on a floating point data entry, read and written as a double. From
+ * {@link PacketSpec#doubleField(String)}.
+ */
+public final class DoubleField extends DataField {
+	/** whether values have to be checked against a range */
+	final boolean ranged;
+	
+	DoubleField(PacketSpec spec, String key) {
+		super(spec, key);
+		this.ranged = spec.getType(key) == DataType.QUANTIZED;
+	}
+}
@@ -0,0 +1,25 @@
+package com.unascribed.lambdanetwork;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writes and reads the fields of one packet that come after its bitfield,
+ * in wire order. Subclasses are generated by {@link CodecGenerator}, with
+ * each field's ByteBuf calls written out in place, so nothing goes through
+ * the call sites {@link PacketCodec} shares between every packet and type.
+ */
+abstract class FieldCodec {
+
+	/**
+	 * @param strings the connection's dictionary for interned strings, or
+	 * 		null to send them inline
+	 */
+	abstract void write(Slots values, ByteBuf buf, StringDictionary strings);
+
+	/**
+	 * @param strings the connection's dictionary for interned strings, or
+	 * 		null if only inline strings are expected
+	 */
+	abstract void read(ByteBuf buf, Slots values, StringDictionary strings);
+
+}
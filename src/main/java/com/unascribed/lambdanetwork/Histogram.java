@@ -0,0 +1,117 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram, in the style of HdrHistogram: every power of two
+ * is split into 16 equal buckets, so any value it reports is within about
+ * 6% of what was recorded, no matter how big. Recording is a couple of
+ * atomic increments with no locking or allocation, so it's cheap enough to
+ * do for every packet. Values above about 18 minutes, in nanoseconds, are
+ * counted as the largest bucket.
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXPONENT+1))-1;
+	private static final int BUCKETS = (MAX_EXPONENT-SUB_BITS+2)*SUB_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram() {}
+
+	void record(long value) {
+		if (value < 0) value = 0;
+		if (value > MAX_VALUE) value = MAX_VALUE;
+		buckets.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long prev;
+		while (value > (prev = max.get())) {
+			if (max.compareAndSet(prev, value)) break;
+		}
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_COUNT) return (int)value;
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent-SUB_BITS)) & (SUB_COUNT-1);
+		return ((exponent-SUB_BITS+1) << SUB_BITS) | sub;
+	}
+
+	/**
+	 * @return the largest value that lands in the given bucket
+	 */
+	private static long highestIn(int bucket) {
+		int block = bucket >>> SUB_BITS;
+		if (block == 0) return bucket;
+		long sub = bucket & (SUB_COUNT-1);
+		return ((SUB_COUNT+sub+1) << (block-1))-1;
+	}
+
+	/**
+	 * @return how many values have been recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, or 0 if there aren't any
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get()/(double)n;
+	}
+
+	/**
+	 * @return the largest value recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return a value that at least the given percentage of the recorded
+	 * 		values are no bigger than, to within the histogram's precision,
+	 * 		or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(total*Math.min(100, Math.max(0, percentile))/100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets everything recorded so far. Values recorded while this is
+	 * running may or may not survive it.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+}
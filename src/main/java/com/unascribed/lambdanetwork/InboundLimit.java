@@ -0,0 +1,75 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+/**
+ * One connection's token bucket and queue count for one
+ * {@link PacketSpec#rateLimited rate limited} packet, along with how much of
+ * it has been let through and how much hasn't.
+ * <p>
+ * Guarded by the monitor of the {@link ConnectionState} that owns it, apart
+ * from the queue count, which is decremented by whichever thread handles
+ * the packet.
+ */
+final class InboundLimit {
+	/** how many packets can be received right now; negative while throttled */
+	private double tokens;
+	private long lastRefill;
+	/** packets waiting for the main thread or an executor */
+	final AtomicInteger queued = new AtomicInteger();
+	final AtomicLong accepted = new AtomicLong();
+	final AtomicLong limited = new AtomicLong();
+
+	InboundLimit(PacketSpec spec, long now) {
+		this.tokens = spec.getBurst();
+		this.lastRefill = now;
+	}
+
+	/**
+	 * Takes a token from the bucket, if the packet has a rate limit.
+	 * 
+	 * @return false if the bucket was empty
+	 */
+	boolean tryAcquire(PacketSpec spec, long now) {
+		if (spec.getRateLimit() <= 0) return true;
+		refill(spec, now);
+		if (tokens < 1) return false;
+		tokens--;
+		return true;
+	}
+
+	/**
+	 * Takes a token from the bucket even though it's empty.
+	 * 
+	 * @return how long until the bucket has a token again, in nanoseconds
+	 */
+	long borrow(PacketSpec spec, long now) {
+		if (spec.getRateLimit() <= 0) return 0;
+		refill(spec, now);
+		tokens--;
+		return (long)((1-tokens)/spec.getRateLimit()*1000000000D);
+	}
+
+	private void refill(PacketSpec spec, long now) {
+		tokens = Math.min(spec.getBurst(), tokens+((now-lastRefill)*spec.getRateLimit()/1000000000D));
+		lastRefill = now;
+	}
+
+	/**
+	 * @return a handler that counts the packet as no longer queued once the
+	 * 		given one is done with it
+	 */
+	BiConsumer<EntityPlayer, Token> track(BiConsumer<EntityPlayer, Token> handler) {
+		return (e, t) -> {
+			try {
+				handler.accept(e, t);
+			} finally {
+				queued.decrementAndGet();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on an integer data entry, read and written as an int. From
+ * {@link PacketSpec#intField(String)}.
+ */
+public final class IntField extends DataField {
+	/** whether values have to be checked against a range */
+	final boolean ranged;
+	
+	IntField(PacketSpec spec, String key) {
+		super(spec, key);
+		this.ranged = spec.getType(key).isBounded();
+	}
+}
@@ -1,18 +1,46 @@
 package com.unascribed.lambdanetwork;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import net.minecraft.client.Minecraft;
 import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.network.NetHandlerPlayServer;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
 import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.INetHandlerPlayClient;
+import net.minecraft.network.play.INetHandlerPlayServer;
+import net.minecraft.network.play.client.C17PacketCustomPayload;
+import net.minecraft.network.play.server.S3FPacketCustomPayload;
+import net.minecraft.server.MinecraftServer;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.FMLNetworkEvent.ClientCustomPacketEvent;
@@ -22,97 +50,1484 @@ import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
 public class LambdaChannel {
+	/** largest payload vanilla will put in a single S3F packet */
+	private static final int MAX_CLIENTBOUND_PAYLOAD = 1048576;
+	/** largest payload that fits in a bundle with its length prefix */
+	private static final int MAX_BUNDLED_PAYLOAD = MAX_CLIENTBOUND_PAYLOAD-6;
+	/** largest payload a compressed frame may inflate to */
+	private static final int MAX_INFLATED_PAYLOAD = 32*1048576;
+	/** largest payload a streamed packet may reassemble to */
+	private static final int MAX_STREAMED_PAYLOAD = 32*1048576;
+	/** largest piece of a streamed packet sent at once */
+	static final int MAX_FRAGMENT = 32768;
+	/** how long a throttled connection with a full queue stops reading for */
+	private static final long TICK_NANOS = 50000000L;
+	/*
+	 * the lowest ids are control frames, so that they always fit in one
+	 * byte. packet ids come after them
+	 */
+	private static final int BUNDLE_ID = 0;
+	private static final int RESYNC_ID = 1;
+	private static final int COMPRESSED_ID = 2;
+	private static final int FRAGMENT_ID = 3;
+	private static final int SCHEMA_ID = 4;
+	static final int CONTROL_IDS = 5;
+	
 	private final String channel;
-	private final ImmutableMap<String, PacketSpec> packets;
-	private final ImmutableList<String> ids;
+	private final ChannelConfig config;
+	private final LambdaNetwork network;
+	private final ImmutableMap<String, PacketCodec> codecs;
+	/** indexed by id minus {@link #CONTROL_IDS} */
+	private final PacketCodec[] codecsById;
+	/** hash of every packet's id and layout, for checking both sides agree */
+	private final long schemaFingerprint;
+	
+	private final ConcurrentMap<NetworkManager, ConnectionState> connections = new MapMaker().weakKeys().makeMap();
+	
+	/** payloads sent to each player this tick, written out by {@link #flushBundles()} */
+	private final Map<EntityPlayerMP, OutboundQueue> queued = Maps.newIdentityHashMap();
+	/** streamed packets still being sent to each player, oldest first */
+	private final Map<EntityPlayerMP, Deque<OutboundTransfer>> transfers = Maps.newIdentityHashMap();
+	private final AtomicInteger nextTransferId = new AtomicInteger();
+	
+	/** packets waiting for each side's main thread */
+	private final MainThreadQueue serverQueue = new MainThreadQueue();
+	private final MainThreadQueue clientQueue = new MainThreadQueue();
+	/** keeps each player's packets in order, for each executor async handlers use */
+	private final Map<Executor, StripedExecutor> executors = Maps.newIdentityHashMap();
+	
+	private final AtomicLong buffersAllocated = new AtomicLong();
+	private final AtomicLong bytesAllocated = new AtomicLong();
+	private final AtomicLong bufferResizes = new AtomicLong();
+	private final AtomicLong payloadCopies = new AtomicLong();
+	private final AtomicLong slicedPayloads = new AtomicLong();
+	private final AtomicLong bundlesSent = new AtomicLong();
+	private final AtomicLong packetsBundled = new AtomicLong();
+	private final AtomicLong deltasSent = new AtomicLong();
+	private final AtomicLong deltaBytesSaved = new AtomicLong();
+	private final AtomicLong resyncsRequested = new AtomicLong();
+	private final AtomicLong statesResent = new AtomicLong();
+	private final AtomicLong resyncsIgnored = new AtomicLong();
+	private final AtomicLong bytesBeforeCompression = new AtomicLong();
+	private final AtomicLong bytesAfterCompression = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	private final AtomicLong decompressionNanos = new AtomicLong();
+	private final AtomicLong transfersStarted = new AtomicLong();
+	private final AtomicLong transfersCompleted = new AtomicLong();
+	private final AtomicLong transfersCancelled = new AtomicLong();
+	private final AtomicLong fragmentsSent = new AtomicLong();
+	private final AtomicLong packetsLimited = new AtomicLong();
 	
 	
 	public LambdaChannel(String channel, List<PacketSpec> packets) {
+		this(channel, packets, new ChannelConfig(), null);
+	}
+	
+	LambdaChannel(String channel, List<PacketSpec> packets, ChannelConfig config, LambdaNetwork network) {
 		this.channel = channel;
-		ImmutableMap.Builder<String, PacketSpec> builder = ImmutableMap.builder();
-		ImmutableList.Builder<String> ids = ImmutableList.builder();
-		for (PacketSpec ps : packets) {
-			builder.put(ps.getIdentifier(), PacketSpec.immutableClone(ps));
-			ids.add(ps.getIdentifier());
-		}
-		this.packets = builder.build();
-		this.ids = ids.build();
+		this.config = config;
+		this.network = network;
+		this.codecsById = assignIds(packets);
+		ImmutableMap.Builder<String, PacketCodec> builder = ImmutableMap.builder();
+		for (PacketCodec codec : codecsById) {
+			builder.put(codec.spec.getIdentifier(), codec);
+			Executor executor = codec.spec.getExecutor();
+			if (executor != null && !executors.containsKey(executor)) {
+				executors.put(executor, new StripedExecutor(executor));
+			}
+		}
+		this.codecs = builder.build();
+		this.schemaFingerprint = fingerprint(codecsById);
 		NetworkRegistry.INSTANCE.newEventDrivenChannel(channel).register(this);
 	}
 
 
 	public PacketSpec getPacketSpec(String packet) {
-		if (!packets.containsKey(packet)) {
+		return getCodec(packet).spec;
+	}
+	
+	/**
+	 * @return a hash of every packet on this channel, its id, and how it's
+	 * 		laid out on the wire. both sides of a connection must have the
+	 * 		same fingerprint to understand each other
+	 */
+	public long getSchemaFingerprint() {
+		return schemaFingerprint;
+	}
+	
+	/**
+	 * Builds the codecs for the given packets, giving the most frequent ones
+	 * the lowest ids. Both ends of a connection must do this the same way.
+	 * 
+	 * @return the codecs, indexed by id minus {@link #CONTROL_IDS}
+	 */
+	static PacketCodec[] assignIds(List<PacketSpec> packets) {
+		// the sort is stable, so ties stay in declaration order
+		List<PacketSpec> ranked = Lists.newArrayList(packets);
+		Collections.sort(ranked, (a, b) -> Ints.compare(b.getFrequencyHint(), a.getFrequencyHint()));
+		PacketCodec[] codecs = new PacketCodec[ranked.size()];
+		for (int i = 0; i < codecs.length; i++) {
+			codecs[i] = new PacketCodec(PacketSpec.immutableClone(ranked.get(i)), CONTROL_IDS+i);
+		}
+		return codecs;
+	}
+	
+	static long fingerprint(PacketCodec[] codecs) {
+		Hasher h = Hashing.murmur3_128().newHasher();
+		for (PacketCodec codec : codecs) {
+			PacketSpec spec = codec.spec;
+			h.putInt(codec.discriminator);
+			h.putString(spec.getIdentifier(), Charsets.UTF_8);
+			h.putInt(spec.getSide() == null ? -1 : spec.getSide().ordinal());
+			for (int i = 0; i < codec.keys.length; i++) {
+				h.putString(codec.keys[i], Charsets.UTF_8);
+				h.putInt(codec.types[i].ordinal());
+				h.putLong(codec.minimums[i]);
+				h.putLong(codec.maximums[i]);
+				h.putDouble(codec.origins[i]);
+				h.putDouble(codec.precisions[i]);
+			}
+			h.putInt(codec.keySlots == null ? -1 : codec.keySlots.length);
+			if (codec.keySlots != null) {
+				for (int slot : codec.keySlots) {
+					h.putInt(slot);
+				}
+			}
+			h.putBoolean(codec.coalesce);
+			h.putBoolean(codec.delta);
+			h.putBoolean(spec.isStreamed());
+		}
+		return h.hash().asLong();
+	}
+	
+	/**
+	 * @return the player index of the owning network, or null if this
+	 * 		channel was created on its own
+	 */
+	PlayerGrid getPlayerGrid() {
+		return network == null ? null : network.getPlayerGrid();
+	}
+	
+	/**
+	 * @return the chunk watcher index of the owning network, or null if this
+	 * 		channel was created on its own
+	 */
+	ChunkWatchers getChunkWatchers() {
+		return network == null ? null : network.getChunkWatchers();
+	}
+	
+	ConnectionState stateOf(NetworkManager nm) {
+		ConnectionState state = connections.get(nm);
+		if (state == null) {
+			state = new ConnectionState();
+			ConnectionState existing = connections.putIfAbsent(nm, state);
+			if (existing != null) {
+				state = existing;
+			}
+		}
+		return state;
+	}
+	
+	/**
+	 * Forgets everything about the given connection. Called when it closes.
+	 */
+	void connectionClosed(NetworkManager nm) {
+		ConnectionState state = connections.remove(nm);
+		if (state != null) {
+			synchronized (state) {
+				state.close();
+			}
+		}
+	}
+	
+	/**
+	 * @return the codec of the packet with the given id
+	 * @throws IllegalArgumentException if the id isn't a packet on this
+	 * 		channel
+	 */
+	private PacketCodec codecById(int id) {
+		if (id < CONTROL_IDS || id-CONTROL_IDS >= codecsById.length) {
+			throw new IllegalArgumentException("Unknown lambda packet id "+id);
+		}
+		return codecsById[id-CONTROL_IDS];
+	}
+	
+	PacketCodec getCodec(String packet) {
+		PacketCodec codec = codecs.get(packet);
+		if (codec == null) {
 			throw new IllegalArgumentException("No such packet '"+packet+"' on channel '"+channel+"'");
 		}
-		return packets.get(packet);
+		return codec;
 	}
 	
 	
+	/**
+	 * Encodes the given packet into an unpooled buffer owned by the returned
+	 * FMLProxyPacket. The send methods on {@link PendingPacket} don't use
+	 * this, they use pooled buffers that are released after sending.
+	 */
 	public FMLProxyPacket getPacketFrom(PendingPacket pp) {
-		if (pp.getData().size() != pp.getPacket().getData().size())
-			throw new IllegalArgumentException("Missing data for keys "+Lists.newArrayList(pp.getPacket().getData().keySet()).removeAll(pp.getData().keySet()));
-		PacketSpec spec = pp.getPacket();
-		PacketBuffer payload = new PacketBuffer(Unpooled.buffer(spec.getMinimumSize()));
-		payload.writeByte(ids.indexOf(spec.getIdentifier()));
-		int booleanBits = spec.getAmountOfType(DataType.BOOLEAN);
-		for (int i = 0; i < Math.ceil(booleanBits/8f); i++) {
-			int by = 0;
-			for (int j = i*8; j < Math.min(spec.getBooleanKeys().size(), i+8); j++) {
-				String key = spec.getBooleanKeys().get(j);
-				if (((Boolean)pp.getData().get(key))) {
-					by |= (1 << j);
+		return new FMLProxyPacket(new PacketBuffer(encodeUnpooled(pp)), channel);
+	}
+	
+	/**
+	 * Encodes the given packet into an exactly-sized unpooled heap buffer,
+	 * for payloads that are kept around and left to the garbage collector.
+	 */
+	ByteBuf encodeUnpooled(PendingPacket pp) {
+		PacketCodec codec = pp.getCodec();
+		Slots values = pp.getValues();
+		values.checkComplete();
+		long start = System.nanoTime();
+		ByteBuf buf = Unpooled.buffer(codec.sizeOf(values));
+		codec.encode(values, buf);
+		codec.metrics.getEncodeTime().record(System.nanoTime()-start);
+		return buf;
+	}
+	
+	/**
+	 * Encodes the given packet into a buffer from this channel's allocator,
+	 * sized to fit exactly. Large data buffers are sliced into the result
+	 * instead of being copied. The caller owns the returned buffer and must
+	 * release it.
+	 */
+	ByteBuf encode(PendingPacket pp) {
+		PacketCodec codec = pp.getCodec();
+		Slots values = pp.getValues();
+		values.checkComplete();
+		long start = System.nanoTime();
+		if (codec.worthSlicing(values)) {
+			CompositeByteBuf buf = config.allocator.compositeBuffer(codec.dataSlots.length*2+1);
+			try {
+				codec.encodeSliced(values, buf, config.allocator, config.directBuffers);
+			} catch (RuntimeException e) {
+				buf.release();
+				throw e;
+			}
+			slicedPayloads.incrementAndGet();
+			codec.metrics.getEncodeTime().record(System.nanoTime()-start);
+			return buf;
+		}
+		int size = codec.sizeOf(values);
+		ByteBuf buf = allocate(size);
+		try {
+			codec.encode(values, buf);
+		} catch (RuntimeException e) {
+			buf.release();
+			throw e;
+		}
+		if (buf.capacity() != size) {
+			bufferResizes.incrementAndGet();
+		}
+		codec.metrics.getEncodeTime().record(System.nanoTime()-start);
+		return buf;
+	}
+	
+	
+	private ByteBuf allocate(int size) {
+		ByteBuf buf = config.directBuffers ? config.allocator.directBuffer(size) : config.allocator.heapBuffer(size);
+		buffersAllocated.incrementAndGet();
+		bytesAllocated.addAndGet(size);
+		return buf;
+	}
+	
+	
+	/**
+	 * Sends an encoded payload to the given player. The payload is retained
+	 * for as long as the network needs it, the caller still owns its own
+	 * reference.
+	 * 
+	 * @param key the payload's coalescing key, or null
+	 */
+	void sendToClient(EntityPlayerMP player, PacketCodec codec, ByteBuf payload, StateKey key) {
+		if (player.playerNetServerHandler == null) return; // fake players
+		if (startTransfer(player, codec, payload)) return;
+		if (enqueue(player, payload, key)) return;
+		sendNow(player, payload);
+	}
+	
+	/**
+	 * Sends an encoded payload to the given player right away, skipping the
+	 * queue, but compressing it if this channel compresses.
+	 */
+	void sendNow(EntityPlayerMP player, ByteBuf payload) {
+		NetHandlerPlayServer handler = player.playerNetServerHandler;
+		if (handler == null) return;
+		NetworkManager nm = handler.netManager;
+		if (compresses(nm, payload)) {
+			ConnectionState state = stateOf(nm);
+			synchronized (state) {
+				ByteBuf compressed = compress(state, payload);
+				if (compressed != null) {
+					try {
+						sendUncompressed(handler, compressed);
+					} finally {
+						compressed.release();
+					}
+					return;
+				}
+			}
+		}
+		sendUncompressed(handler, payload);
+	}
+	
+	private void sendUncompressed(NetHandlerPlayServer handler, ByteBuf payload) {
+		if (payload.readableBytes() > MAX_CLIENTBOUND_PAYLOAD) {
+			for (Packet<INetHandlerPlayClient> p : toMultipartPackets(payload)) {
+				handler.sendPacket(p);
+			}
+		} else if (handler.netManager.isLocalChannel()) {
+			// local packets are handed to the client as-is, so nobody tells us when they're done
+			handler.sendPacket(new S3FPacketCustomPayload(channel, new PacketBuffer(copy(payload))));
+		} else {
+			payload.retain();
+			handler.netManager.sendPacket(new S3FPacketCustomPayload(channel, new PacketBuffer(payload.duplicate())), releaser(payload));
+		}
+	}
+	
+	/**
+	 * Queues a payload to go out to the given player at the end of the tick,
+	 * if this channel bundles or the payload is coalesced, and it's being
+	 * called from the server thread. The payload is retained until it has
+	 * been written, the caller still owns its own reference.
+	 * 
+	 * @param key the payload's coalescing key, or null
+	 * @return true if the payload was queued, false if it needs to be sent
+	 * 		right away
+	 */
+	boolean enqueue(EntityPlayerMP player, ByteBuf payload, StateKey key) {
+		if (!config.bundled && key == null) return false;
+		if (!isServerThread()) return false;
+		OutboundQueue queue = queued.get(player);
+		if (payload.readableBytes() > MAX_BUNDLED_PAYLOAD) {
+			// too big to bundle, but it still has to go after what's queued
+			if (queue != null) {
+				queued.remove(player);
+				writeQueue(player, queue.payloads);
+			}
+			return false;
+		}
+		if (queue == null) {
+			queue = new OutboundQueue();
+			queued.put(player, queue);
+		}
+		if (queue.add(payload.retain(), key)) {
+			key.codec.coalesced.incrementAndGet();
+		} else if (config.bundled) {
+			packetsBundled.incrementAndGet();
+		}
+		return true;
+	}
+	
+	private static boolean isServerThread() {
+		MinecraftServer srv = MinecraftServer.getServer();
+		return srv != null && srv.isCallingFromMinecraftThread();
+	}
+	
+	/**
+	 * Sends everything queued by {@link #enqueue} this tick. Called at the end
+	 * of every server tick.
+	 */
+	void flushQueued() {
+		if (queued.isEmpty()) return;
+		for (Map.Entry<EntityPlayerMP, OutboundQueue> en : queued.entrySet()) {
+			writeQueue(en.getKey(), en.getValue().payloads);
+		}
+		queued.clear();
+	}
+	
+	/**
+	 * Sends the given payloads, packed into as few bundles as possible if this
+	 * channel bundles, then releases them. A bundle is the bundle id followed
+	 * by each payload prefixed with its length as a varint.
+	 */
+	private void writeQueue(EntityPlayerMP player, List<ByteBuf> payloads) {
+		try {
+			if (!config.bundled) {
+				for (int i = 0; i < payloads.size(); i++) {
+					sendNow(player, payloads.get(i));
+				}
+				return;
+			}
+			int start = 0;
+			while (start < payloads.size()) {
+				int size = 1;
+				int end = start;
+				while (end < payloads.size()) {
+					int len = payloads.get(end).readableBytes();
+					int frame = WireFormat.varIntByteCount(len)+len;
+					if (end > start && size+frame > MAX_CLIENTBOUND_PAYLOAD) break;
+					size += frame;
+					end++;
+				}
+				if (end-start == 1) {
+					// no point wrapping a lone packet
+					sendNow(player, payloads.get(start));
+				} else {
+					ByteBuf bundle = allocate(size);
+					try {
+						bundle.writeByte(BUNDLE_ID);
+						for (int i = start; i < end; i++) {
+							ByteBuf p = payloads.get(i);
+							WireFormat.writeVarInt(bundle, p.readableBytes(), 5);
+							bundle.writeBytes(p, p.readerIndex(), p.readableBytes());
+						}
+						sendNow(player, bundle);
+					} finally {
+						bundle.release();
+					}
+					bundlesSent.incrementAndGet();
+				}
+				start = end;
+			}
+		} finally {
+			for (int i = 0; i < payloads.size(); i++) {
+				payloads.get(i).release();
+			}
+		}
+	}
+	
+	/**
+	 * Starts streaming the given payload to the given player, if it's a
+	 * streamed packet that's too big to go out in one piece and it's being
+	 * sent from the server thread. The payload is retained until it's been
+	 * sent, the caller still owns its own reference.
+	 * 
+	 * @return true if the payload will be streamed, false if it needs to be
+	 * 		sent some other way
+	 */
+	boolean startTransfer(EntityPlayerMP player, PacketCodec codec, ByteBuf payload) {
+		if (!codec.spec.isStreamed() || payload.readableBytes() <= MAX_FRAGMENT) return false;
+		if (!isServerThread() || player.playerNetServerHandler.netManager.isLocalChannel()) return false;
+		Deque<OutboundTransfer> li = transfers.get(player);
+		if (li == null) {
+			li = new ArrayDeque<OutboundTransfer>();
+			transfers.put(player, li);
+		}
+		int id = nextTransferId.getAndIncrement() & Integer.MAX_VALUE;
+		li.add(new OutboundTransfer(id, payload.duplicate().retain()));
+		transfersStarted.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Sends each player the next pieces of their streamed packets, up to the
+	 * streaming budget, and drops the transfers of players that have left.
+	 * Called at the end of every server tick, after the queues are flushed.
+	 * <p>
+	 * A fragment is the fragment id, then the transfer id, total length and
+	 * offset as varints, then the piece of the payload.
+	 */
+	void pumpTransfers() {
+		if (transfers.isEmpty()) return;
+		Iterator<Map.Entry<EntityPlayerMP, Deque<OutboundTransfer>>> iter = transfers.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<EntityPlayerMP, Deque<OutboundTransfer>> en = iter.next();
+			EntityPlayerMP player = en.getKey();
+			Deque<OutboundTransfer> li = en.getValue();
+			NetHandlerPlayServer handler = player.playerNetServerHandler;
+			if (handler == null || !handler.netManager.isChannelOpen()) {
+				cancel(li);
+				iter.remove();
+				continue;
+			}
+			int budget = config.streamingBudget;
+			while (budget > 0 && !li.isEmpty()) {
+				OutboundTransfer t = li.peek();
+				int len = Math.min(Math.min(budget, MAX_FRAGMENT), t.payload.readableBytes());
+				int offset = t.offset();
+				ByteBuf frag = allocate(1+WireFormat.varIntByteCount(t.id)+WireFormat.varIntByteCount(t.length)
+						+WireFormat.varIntByteCount(offset)+len);
+				try {
+					frag.writeByte(FRAGMENT_ID);
+					WireFormat.writeVarInt(frag, t.id, 5);
+					WireFormat.writeVarInt(frag, t.length, 5);
+					WireFormat.writeVarInt(frag, offset, 5);
+					frag.writeBytes(t.payload, len);
+					sendNow(player, frag);
+				} finally {
+					frag.release();
+				}
+				fragmentsSent.incrementAndGet();
+				budget -= len;
+				if (!t.payload.isReadable()) {
+					li.poll();
+					t.payload.release();
+					transfersCompleted.incrementAndGet();
+				}
+			}
+			if (li.isEmpty()) {
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Stops sending every streamed packet that's still on its way to the
+	 * given player. The player won't receive any of them.
+	 */
+	public void cancelTransfers(EntityPlayer player) {
+		Deque<OutboundTransfer> li = transfers.remove(player);
+		if (li != null) {
+			cancel(li);
+		}
+	}
+	
+	private void cancel(Deque<OutboundTransfer> li) {
+		for (OutboundTransfer t : li) {
+			t.payload.release();
+			transfersCancelled.incrementAndGet();
+		}
+		li.clear();
+	}
+	
+	/**
+	 * Sends an encoded payload to the server. The payload is retained for as
+	 * long as the network needs it, the caller still owns its own reference.
+	 */
+	@SideOnly(Side.CLIENT)
+	void sendToServer(ByteBuf payload) {
+		NetworkManager nm = Minecraft.getMinecraft().getNetHandler().getNetworkManager();
+		if (compresses(nm, payload)) {
+			ConnectionState state = stateOf(nm);
+			synchronized (state) {
+				ByteBuf compressed = compress(state, payload);
+				if (compressed != null) {
+					try {
+						sendToServerUncompressed(nm, compressed);
+					} finally {
+						compressed.release();
+					}
+					return;
+				}
+			}
+		}
+		sendToServerUncompressed(nm, payload);
+	}
+	
+	@SideOnly(Side.CLIENT)
+	private void sendToServerUncompressed(NetworkManager nm, ByteBuf payload) {
+		if (nm.isLocalChannel()) {
+			nm.sendPacket(new C17PacketCustomPayload(channel, new PacketBuffer(copy(payload))));
+		} else {
+			payload.retain();
+			nm.sendPacket(new C17PacketCustomPayload(channel, new PacketBuffer(payload.duplicate())), releaser(payload));
+		}
+	}
+	
+	/**
+	 * @return true if the given payload should be compressed before being
+	 * 		sent over the given connection
+	 */
+	boolean compresses(NetworkManager nm, ByteBuf payload) {
+		return config.compressionLevel != -2 && payload.readableBytes() >= config.compressionThreshold && !nm.isLocalChannel();
+	}
+	
+	/**
+	 * Deflates a payload into a compressed frame: the compressed id, the
+	 * payload's length as a varint, then the payload sync flushed into the
+	 * connection's deflate stream. Must be called with the state's lock held,
+	 * and the frame must be sent before it's released, since every frame
+	 * depends on the ones before it.
+	 * 
+	 * @return the frame, owned by the caller, or null if the connection has
+	 * 		been closed
+	 */
+	private ByteBuf compress(ConnectionState state, ByteBuf payload) {
+		CompressionContext ctx = state.compression();
+		if (ctx == null) return null;
+		long start = System.nanoTime();
+		int len = payload.readableBytes();
+		int initial = 6+(len/2);
+		ByteBuf buf = config.directBuffers ? config.allocator.directBuffer(initial) : config.allocator.heapBuffer(initial);
+		try {
+			buf.writeByte(COMPRESSED_ID);
+			WireFormat.writeVarInt(buf, len, 5);
+			ctx.deflate(payload, buf, config.compressionLevel);
+		} catch (RuntimeException e) {
+			buf.release();
+			throw e;
+		}
+		bytesBeforeCompression.addAndGet(len);
+		bytesAfterCompression.addAndGet(buf.readableBytes());
+		compressionNanos.addAndGet(System.nanoTime()-start);
+		return buf;
+	}
+	
+	/**
+	 * Sends a {@link PacketCodec#stateful stateful} packet to the given
+	 * player, encoded against whatever that player's connection was last
+	 * sent.
+	 */
+	void sendStatefulToClient(EntityPlayerMP player, PreparedPacket p) {
+		NetHandlerPlayServer handler = player.playerNetServerHandler;
+		if (handler == null) return; // fake players
+		if (config.bundled && !isServerThread()) {
+			// this would overtake anything still queued, which the baselines
+			// and dictionaries can't cope with, so send it without touching
+			// them
+			p.codec.metrics.recordSent(p.payload().readableBytes());
+			sendToClient(player, p.codec, p.payload(), null);
+			return;
+		}
+		ConnectionState state = stateOf(handler.netManager);
+		synchronized (state) {
+			ByteBuf payload = encodeStateful(state, p);
+			p.codec.metrics.recordSent(payload.readableBytes());
+			try {
+				sendToClient(player, p.codec, payload, null);
+			} finally {
+				payload.release();
+			}
+		}
+	}
+	
+	/**
+	 * Sends a {@link PacketCodec#stateful stateful} packet to the server,
+	 * encoded against whatever was last sent to it.
+	 */
+	@SideOnly(Side.CLIENT)
+	void sendStatefulToServer(PreparedPacket p) {
+		ConnectionState state = stateOf(Minecraft.getMinecraft().getNetHandler().getNetworkManager());
+		synchronized (state) {
+			ByteBuf payload = encodeStateful(state, p);
+			p.codec.metrics.recordSent(payload.readableBytes());
+			try {
+				sendToServer(payload);
+			} finally {
+				payload.release();
+			}
+		}
+	}
+	
+	/**
+	 * Encodes a {@link PacketCodec#stateful stateful} packet for one
+	 * connection, interning its strings in that connection's dictionary and,
+	 * if it's delta encoded, making it the new baseline. Must be called with
+	 * the state's lock held, and the result must be sent before it's
+	 * released. The caller owns the returned buffer.
+	 */
+	private ByteBuf encodeStateful(ConnectionState state, PreparedPacket p) {
+		long start = System.nanoTime();
+		ByteBuf buf = encodeStateful(state, p.codec, p.snapshot());
+		p.codec.metrics.getEncodeTime().record(System.nanoTime()-start);
+		return buf;
+	}
+	
+	private ByteBuf encodeStateful(ConnectionState state, PacketCodec codec, Slots values) {
+		StringDictionary strings = codec.interned ? state.sentStrings : null;
+		if (!codec.delta) {
+			values.checkComplete();
+			ByteBuf buf = allocate(codec.sizeOf(values));
+			try {
+				codec.encode(values, buf, PacketCodec.MODE_FULL, strings);
+			} catch (RuntimeException e) {
+				buf.release();
+				throw e;
+			}
+			return buf;
+		}
+		values.checkComplete();
+		StateKey key = codec.stateKey(values);
+		Slots baseline = state.sentBaselines.get(key);
+		ByteBuf buf;
+		if (baseline == null) {
+			buf = allocate(codec.sizeOf(values));
+			try {
+				codec.encode(values, buf, PacketCodec.MODE_FULL, strings);
+			} catch (RuntimeException e) {
+				buf.release();
+				throw e;
+			}
+		} else {
+			byte[] mask = codec.deltaMask(values, baseline);
+			int size = codec.sizeOfDelta(values, mask);
+			buf = allocate(size);
+			try {
+				codec.encodeDelta(values, mask, buf, strings);
+			} catch (RuntimeException e) {
+				buf.release();
+				throw e;
+			}
+			deltasSent.incrementAndGet();
+			deltaBytesSaved.addAndGet(codec.sizeOf(values)-size);
+		}
+		state.sentBaselines.put(key, values);
+		return buf;
+	}
+	
+	/**
+	 * Sends the given state of a delta encoded packet again in full, as it
+	 * was last sent over the given connection, after the other side forgot
+	 * its baseline.
+	 */
+	private void resend(Side side, EntityPlayer p, NetworkManager nm, PacketCodec codec, StateKey key) {
+		ConnectionState state = stateOf(nm);
+		synchronized (state) {
+			state.resendsPending.remove(codec);
+			if (state.isClosed()) return;
+			Slots values = state.sentBaselines.get(key);
+			// forgotten on this side too, so its next send is a full one anyway
+			if (values == null) return;
+			ByteBuf buf = allocate(codec.sizeOf(values));
+			try {
+				codec.encode(values, buf, PacketCodec.MODE_FULL, codec.interned ? state.sentStrings : null);
+				codec.metrics.recordSent(buf.readableBytes());
+				if (side.isServer()) {
+					sendToClient((EntityPlayerMP)p, codec, buf, null);
+				} else {
+					sendToServer(buf);
 				}
+			} finally {
+				buf.release();
 			}
-			payload.writeByte(by);
+			statesResent.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Copies the given payload into an exactly-sized unpooled heap buffer,
+	 * for packets whose lifetime we can't track.
+	 */
+	ByteBuf copy(ByteBuf payload) {
+		payloadCopies.incrementAndGet();
+		return Unpooled.copiedBuffer(payload);
+	}
+	
+	/**
+	 * Wraps the given payload in vanilla packets, without copying it unless
+	 * it's too big for a single packet.
+	 */
+	List<Packet<INetHandlerPlayClient>> toClientboundPackets(ByteBuf payload) {
+		if (payload.readableBytes() > MAX_CLIENTBOUND_PAYLOAD) {
+			return toMultipartPackets(payload);
+		}
+		return Collections.<Packet<INetHandlerPlayClient>>singletonList(new S3FPacketCustomPayload(channel, new PacketBuffer(payload)));
+	}
+	
+	/**
+	 * Wraps the given payload in a vanilla packet, without copying it.
+	 */
+	Packet<INetHandlerPlayServer> toServerboundPacket(ByteBuf payload) {
+		return new C17PacketCustomPayload(channel, new PacketBuffer(payload));
+	}
+	
+	/**
+	 * Splits an oversized payload using FML's multipart packets.
+	 */
+	private List<Packet<INetHandlerPlayClient>> toMultipartPackets(ByteBuf payload) {
+		try {
+			return new FMLProxyPacket(new PacketBuffer(copy(payload)), channel).toS3FPackets();
+		} catch (IOException e) {
+			// toS3FPackets doesn't appear to actually throw IOExceptions
+			throw Throwables.propagate(e);
 		}
-		for (Map.Entry<String, DataType> en : spec.getData().entrySet()) {
-			if (en.getValue().writer != null) {
-				en.getValue().writer.accept(payload, pp.getData().get(en.getKey()));
+	}
+	
+	private static GenericFutureListener<Future<? super Void>> releaser(final ByteBuf payload) {
+		return new GenericFutureListener<Future<? super Void>>() {
+			@Override
+			public void operationComplete(Future<? super Void> future) throws Exception {
+				payload.release();
 			}
+		};
+	}
+	
+	
+	/**
+	 * @return how many buffers this channel has allocated for outgoing
+	 * 		packets
+	 */
+	public long getBuffersAllocated() {
+		return buffersAllocated.get();
+	}
+	
+	/**
+	 * @return how many bytes this channel has allocated for outgoing packets
+	 */
+	public long getBytesAllocated() {
+		return bytesAllocated.get();
+	}
+	
+	/**
+	 * @return how many outgoing buffers had to grow while encoding, because
+	 * 		their size was underestimated. only packets with NBT can do this
+	 */
+	public long getBufferResizes() {
+		return bufferResizes.get();
+	}
+	
+	/**
+	 * @return how many times an encoded payload had to be copied, for local
+	 * 		connections and oversized packets
+	 */
+	public long getPayloadCopies() {
+		return payloadCopies.get();
+	}
+	
+	/**
+	 * @return how many received packets are waiting for the main thread of
+	 * 		the given side
+	 */
+	public int getMainThreadQueueDepth(Side side) {
+		return (side.isClient() ? clientQueue : serverQueue).depth();
+	}
+	
+	/**
+	 * @return how many received packets have been handled on the main
+	 * 		thread of the given side
+	 */
+	public long getMainThreadPacketsHandled(Side side) {
+		return (side.isClient() ? clientQueue : serverQueue).handled();
+	}
+	
+	/**
+	 * @return how many times a received packet was left for a later tick on
+	 * 		the given side because the main thread budget ran out, counted
+	 * 		once for every tick it waited
+	 */
+	public long getMainThreadPacketsDeferred(Side side) {
+		return (side.isClient() ? clientQueue : serverQueue).deferred();
+	}
+	
+	/**
+	 * @return how many outgoing payloads had large data buffers sliced into
+	 * 		them instead of copied
+	 */
+	public long getSlicedPayloads() {
+		return slicedPayloads.get();
+	}
+	
+	/**
+	 * @return how many bundles this channel has sent, not counting ticks where
+	 * 		a player was only sent one packet
+	 */
+	public long getBundlesSent() {
+		return bundlesSent.get();
+	}
+	
+	/**
+	 * @return how many packets this channel has queued for bundling
+	 */
+	public long getPacketsBundled() {
+		return packetsBundled.get();
+	}
+	
+	/**
+	 * @return how many delta encoded packets this channel has sent as deltas
+	 * 		rather than in full
+	 */
+	public long getDeltasSent() {
+		return deltasSent.get();
+	}
+	
+	/**
+	 * @return how many bytes sending deltas has saved compared to sending
+	 * 		every field
+	 */
+	public long getDeltaBytesSaved() {
+		return deltaBytesSaved.get();
+	}
+	
+	/**
+	 * @return how many deltas this channel has received without having the
+	 * 		baseline they were encoded against, and asked to be resent in full
+	 */
+	public long getResyncsRequested() {
+		return resyncsRequested.get();
+	}
+	
+	/**
+	 * @return how many delta encoded states this channel has sent again in
+	 * 		full, because the other side asked for a resync
+	 */
+	public long getStatesResent() {
+		return statesResent.get();
+	}
+	
+	/**
+	 * @return how many resyncs this channel has received while it was still
+	 * 		answering another for the same packet, and dropped
+	 */
+	public long getResyncsIgnored() {
+		return resyncsIgnored.get();
+	}
+	
+	/**
+	 * @return how many bytes of payloads this channel has compressed
+	 */
+	public long getBytesBeforeCompression() {
+		return bytesBeforeCompression.get();
+	}
+	
+	/**
+	 * @return how many bytes the payloads this channel has compressed came
+	 * 		out as, including frame headers
+	 */
+	public long getBytesAfterCompression() {
+		return bytesAfterCompression.get();
+	}
+	
+	/**
+	 * @return the compressed size of everything this channel has compressed
+	 * 		divided by its uncompressed size, or 1 if nothing has been
+	 */
+	public double getCompressionRatio() {
+		long before = bytesBeforeCompression.get();
+		if (before == 0) return 1;
+		return bytesAfterCompression.get()/(double)before;
+	}
+	
+	/**
+	 * @return how much time this channel has spent compressing payloads, in
+	 * 		nanoseconds
+	 */
+	public long getCompressionNanos() {
+		return compressionNanos.get();
+	}
+	
+	/**
+	 * @return how much time this channel has spent decompressing payloads,
+	 * 		in nanoseconds
+	 */
+	public long getDecompressionNanos() {
+		return decompressionNanos.get();
+	}
+	
+	/**
+	 * @return how many streamed packets this channel has started sending in
+	 * 		pieces
+	 */
+	public long getTransfersStarted() {
+		return transfersStarted.get();
+	}
+	
+	/**
+	 * @return how many streamed packets this channel has finished sending
+	 */
+	public long getTransfersCompleted() {
+		return transfersCompleted.get();
+	}
+	
+	/**
+	 * @return how many streamed packets were cancelled before they finished
+	 * 		sending, usually because the player left
+	 */
+	public long getTransfersCancelled() {
+		return transfersCancelled.get();
+	}
+	
+	/**
+	 * @return how many pieces of streamed packets this channel has sent
+	 */
+	public long getFragmentsSent() {
+		return fragmentsSent.get();
+	}
+	
+	/**
+	 * @return how many packets from clients have gone over their rate or
+	 * 		queue limit
+	 */
+	public long getPacketsLimited() {
+		return packetsLimited.get();
+	}
+	
+	/**
+	 * @return how many of the given rate limited packet the given player has
+	 * 		sent within its limits
+	 */
+	public long getPacketsAccepted(EntityPlayerMP player, String packet) {
+		InboundLimit limit = limitOf(player, packet);
+		return limit == null ? 0 : limit.accepted.get();
+	}
+	
+	/**
+	 * @return how many of the given rate limited packet the given player has
+	 * 		sent over its limits
+	 */
+	public long getPacketsLimited(EntityPlayerMP player, String packet) {
+		InboundLimit limit = limitOf(player, packet);
+		return limit == null ? 0 : limit.limited.get();
+	}
+	
+	/**
+	 * @return how many of the given queue limited packet from the given
+	 * 		player are waiting to be handled
+	 */
+	public int getPacketsQueued(EntityPlayerMP player, String packet) {
+		InboundLimit limit = limitOf(player, packet);
+		return limit == null ? 0 : limit.queued.get();
+	}
+	
+	private InboundLimit limitOf(EntityPlayerMP player, String packet) {
+		PacketCodec codec = getCodec(packet);
+		ConnectionState state = connections.get(player.playerNetServerHandler.netManager);
+		if (state == null) return null;
+		synchronized (state) {
+			return state.limits.get(codec);
+		}
+	}
+	
+	/**
+	 * @return the counts and timings of the given packet
+	 */
+	public PacketMetrics getMetrics(String packet) {
+		return getCodec(packet).metrics;
+	}
+	
+	/**
+	 * @return the counts and timings of every packet on this channel, by
+	 * 		packet, in id order
+	 */
+	public Map<String, PacketMetrics> getMetrics() {
+		Map<String, PacketMetrics> out = Maps.newLinkedHashMap();
+		for (PacketCodec codec : codecs.values()) {
+			out.put(codec.spec.getIdentifier(), codec.metrics);
 		}
-		return new FMLProxyPacket(payload, channel);
+		return out;
+	}
+	
+	/**
+	 * @return how many sends of the given coalesced packet were replaced by
+	 * 		a later send before they went out
+	 */
+	public long getCoalescedSends(String packet) {
+		return getCodec(packet).coalesced.get();
 	}
 
 
 	@SubscribeEvent
 	public void onServerCustomPacket(ServerCustomPacketEvent e) {
 		ByteBuf payload = e.packet.payload();
-		readPacket(e.side(), ((NetHandlerPlayServer)e.handler).playerEntity, payload);
+		readPacket(e.side(), ((NetHandlerPlayServer)e.handler).playerEntity, e.manager, payload);
 	}
 	
 	@SubscribeEvent
 	@SideOnly(Side.CLIENT)
 	public void onClientCustomPacket(ClientCustomPacketEvent e) {
 		ByteBuf payload = e.packet.payload();
-		readPacket(e.side(), Minecraft.getMinecraft().thePlayer, payload);
+		readPacket(e.side(), Minecraft.getMinecraft().thePlayer, e.manager, payload);
 	}
 	
 	
-	private void readPacket(Side side, EntityPlayer p, ByteBuf payload) {
-		int id = payload.readUnsignedByte();
-		if (id >= ids.size()) {
-			throw new IllegalArgumentException("Unknown lambda packet id "+id);
+	private void readPacket(Side side, EntityPlayer p, NetworkManager nm, ByteBuf payload) {
+		int id = WireFormat.readVarInt(payload, 5);
+		if (id == COMPRESSED_ID) {
+			readCompressed(side, p, nm, payload);
+		} else if (id == FRAGMENT_ID) {
+			readFragment(side, p, nm, payload);
+		} else if (id == RESYNC_ID) {
+			PacketCodec target = codecById(WireFormat.readVarInt(payload, 5));
+			if (!target.delta || target.spec.getSide() == side) {
+				throw new IllegalArgumentException("Packet '"+target.spec.getIdentifier()+"' can't be resynced from side "+side);
+			}
+			Slots values = new Slots(target);
+			target.decodeDeltaKey(payload, values, null);
+			StateKey key = target.stateKey(values);
+			ConnectionState state = stateOf(nm);
+			synchronized (state) {
+				// one at a time, so a flood of them costs no more than one
+				if (!state.resendsPending.add(target)) {
+					resyncsIgnored.incrementAndGet();
+					return;
+				}
+			}
+			// on the thread that sends, so it can't overtake what's queued
+			Runnable task = () -> resend(side, p, nm, target, key);
+			if (network == null) {
+				MainThreadQueue.schedule(side, task);
+			} else {
+				(side.isClient() ? clientQueue : serverQueue).post(target.spec.getIdentifier(), task);
+			}
+		} else if (id == SCHEMA_ID) {
+			readSchema(side, p, nm, payload.readLong());
+		} else if (id == BUNDLE_ID) {
+			while (payload.isReadable()) {
+				int len = WireFormat.readVarInt(payload, 5);
+				if (len < 1 || len > payload.readableBytes()) {
+					throw new IllegalArgumentException("Bad lambda packet length "+len+" in bundle");
+				}
+				ByteBuf frame = payload.slice(payload.readerIndex(), len);
+				payload.skipBytes(len);
+				readSingle(side, p, nm, frame, WireFormat.readVarInt(frame, 5));
+			}
+		} else {
+			readSingle(side, p, nm, payload, id);
+		}
+	}
+	
+	/**
+	 * Runs the main thread handlers of the packets received from clients,
+	 * within this channel's budget. Called at the start of every server
+	 * tick.
+	 */
+	void drainServerQueue() {
+		serverQueue.drain(config.mainThreadPackets, config.mainThreadNanos);
+	}
+	
+	/**
+	 * Runs the main thread handlers of the packets received from the
+	 * server, within this channel's budget. Called at the start of every
+	 * client tick.
+	 */
+	void drainClientQueue() {
+		clientQueue.drain(config.mainThreadPackets, config.mainThreadNanos);
+	}
+	
+	/**
+	 * Tells the given player's client which packets this channel has, so it
+	 * can check that it agrees. Called when the player logs in.
+	 */
+	void sendSchema(EntityPlayerMP player) {
+		ByteBuf buf = allocate(9);
+		try {
+			buf.writeByte(SCHEMA_ID);
+			buf.writeLong(schemaFingerprint);
+			sendNow(player, buf);
+		} finally {
+			buf.release();
+		}
+	}
+	
+	/**
+	 * Checks the other side's schema fingerprint against ours. A client
+	 * that disagrees sends back its own, and a server that gets one kicks
+	 * the player with an explanation, since neither side can make sense of
+	 * the other's packets.
+	 */
+	private void readSchema(Side side, EntityPlayer p, NetworkManager nm, long fingerprint) {
+		if (fingerprint == schemaFingerprint) return;
+		if (side.isClient()) {
+			ByteBuf buf = Unpooled.buffer(9);
+			buf.writeByte(SCHEMA_ID);
+			buf.writeLong(schemaFingerprint);
+			nm.sendPacket(new C17PacketCustomPayload(channel, new PacketBuffer(buf)));
+		} else {
+			kick(p, "Mismatched packets on channel '"+channel+"' (server "+Long.toHexString(schemaFingerprint)
+					+", client "+Long.toHexString(fingerprint)+"); make sure you have the same mod versions as the server");
+		}
+	}
+	
+	/**
+	 * Disconnects the given player from the main thread, since kicking from
+	 * a network thread races with the player's own packets.
+	 */
+	private void kick(EntityPlayer p, String msg) {
+		NetHandlerPlayServer handler = ((EntityPlayerMP)p).playerNetServerHandler;
+		MinecraftServer.getServer().addScheduledTask(() -> {
+			handler.kickPlayerFromServer(msg);
+		});
+	}
+	
+	/**
+	 * Checks a packet from a client against its rate and queue limits, before
+	 * it's decoded. Every packet of one connection is read on the same
+	 * thread, so the queue count can't change under us except downwards.
+	 * 
+	 * @return the packet's limit, or null if the packet should be dropped
+	 */
+	private InboundLimit admit(EntityPlayer p, NetworkManager nm, PacketCodec codec) {
+		PacketSpec spec = codec.spec;
+		ConnectionState state = stateOf(nm);
+		long now = System.nanoTime();
+		long pause;
+		InboundLimit limit;
+		synchronized (state) {
+			limit = state.limits.get(codec);
+			if (limit == null) {
+				limit = new InboundLimit(spec, now);
+				state.limits.put(codec, limit);
+			}
+			boolean full = spec.getMaxQueued() > 0 && limit.queued.get() >= spec.getMaxQueued();
+			if (!full && limit.tryAcquire(spec, now)) {
+				limit.accepted.incrementAndGet();
+				return limit;
+			}
+			limit.limited.incrementAndGet();
+			packetsLimited.incrementAndGet();
+			if (spec.getLimitAction() == LimitAction.DROP) {
+				return null;
+			} else if (spec.getLimitAction() == LimitAction.KICK) {
+				if (!state.kicked) {
+					state.kicked = true;
+					kick(p, "Sent too many '"+spec.getIdentifier()+"' packets on channel '"+channel+"'");
+				}
+				return null;
+			}
+			// a full queue drains as the main thread ticks, so give it one
+			pause = full ? TICK_NANOS : limit.borrow(spec, now);
+		}
+		throttle(nm, state, now+pause);
+		return limit;
+	}
+	
+	/**
+	 * Stops reading from the given connection until the given time, leaving
+	 * whatever the client sends in the meantime to back up in its socket.
+	 */
+	private void throttle(NetworkManager nm, ConnectionState state, long until) {
+		synchronized (state) {
+			if (until > state.throttledUntil) {
+				state.throttledUntil = until;
+			}
+			// an earlier pause is still on; its resume will see the new time
+			if (state.throttled) return;
+			state.throttled = true;
+		}
+		nm.channel().config().setAutoRead(false);
+		nm.channel().eventLoop().schedule(() -> resume(nm, state), until-System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	private void resume(NetworkManager nm, ConnectionState state) {
+		long wait;
+		synchronized (state) {
+			wait = state.throttledUntil-System.nanoTime();
+			if (wait <= 0) {
+				state.throttled = false;
+			}
+		}
+		if (wait > 0) {
+			nm.channel().eventLoop().schedule(() -> resume(nm, state), wait, TimeUnit.NANOSECONDS);
+		} else {
+			nm.channel().config().setAutoRead(true);
+		}
+	}
+	
+	private void readCompressed(Side side, EntityPlayer p, NetworkManager nm, ByteBuf payload) {
+		if (config.compressionLevel == -2) {
+			throw new IllegalArgumentException("Channel '"+channel+"' doesn't use compression, but got a compressed frame");
+		}
+		int len = WireFormat.readVarInt(payload, 5);
+		if (len < 1 || len > MAX_INFLATED_PAYLOAD) {
+			throw new IllegalArgumentException("Bad lambda packet length "+len+" in compressed frame");
+		}
+		ConnectionState state = stateOf(nm);
+		// grows as it inflates, up to the declared length
+		ByteBuf inflated = config.allocator.heapBuffer(Math.min(len, payload.readableBytes()*4), len);
+		try {
+			synchronized (state) {
+				CompressionContext ctx = state.compression();
+				if (ctx == null) return;
+				long start = System.nanoTime();
+				try {
+					ctx.inflate(payload, inflated, len);
+				} catch (DataFormatException e) {
+					throw new IllegalArgumentException("Bad compressed lambda frame", e);
+				}
+				decompressionNanos.addAndGet(System.nanoTime()-start);
+			}
+			if (inflated.getUnsignedByte(inflated.readerIndex()) == COMPRESSED_ID) {
+				throw new IllegalArgumentException("Compressed lambda frames can't be nested");
+			}
+			readPacket(side, p, nm, inflated);
+		} finally {
+			inflated.release();
+		}
+	}
+	
+	private void readFragment(Side side, EntityPlayer p, NetworkManager nm, ByteBuf payload) {
+		if (side == Side.SERVER) {
+			// only the server streams
+			throw new IllegalArgumentException("Streamed transfers can't be sent to the server");
+		}
+		int transfer = WireFormat.readVarInt(payload, 5);
+		int total = WireFormat.readVarInt(payload, 5);
+		int offset = WireFormat.readVarInt(payload, 5);
+		if (total < 1 || total > MAX_STREAMED_PAYLOAD) {
+			throw new IllegalArgumentException("Bad lambda packet length "+total+" in streamed transfer");
+		}
+		ConnectionState state = stateOf(nm);
+		ByteBuf complete;
+		synchronized (state) {
+			if (state.isClosed()) return;
+			complete = state.addFragment(config.allocator, transfer, total, offset, payload);
+		}
+		if (complete != null) {
+			try {
+				int id = WireFormat.readVarInt(complete, 5);
+				if (id < CONTROL_IDS) {
+					throw new IllegalArgumentException("Streamed transfer "+transfer+" contains control frame "+id);
+				}
+				readSingle(side, p, nm, complete, id);
+			} finally {
+				complete.release();
+			}
 		}
-		String strId = ids.get(id);
-		PacketSpec spec = packets.get(strId);
+	}
+	
+	/**
+	 * @return the given received values in a form that can be kept as a
+	 * 		baseline, without holding on to the payload they came from or
+	 * 		sharing arrays the handler can change in place
+	 */
+	static Slots baseline(PacketCodec codec, Slots values) {
+		return codec.referenceSlots > 0 ? values.copy() : values;
+	}
+	
+	private void readSingle(Side side, EntityPlayer p, NetworkManager nm, ByteBuf payload, int id) {
+		PacketCodec codec = codecById(id);
+		PacketSpec spec = codec.spec;
 		if (spec.getSide() != side) {
 			throw new IllegalArgumentException("Packet '"+spec.getIdentifier()+"' is not valid for side "+side);
 		}
-		Token token = new Token(spec);
-		int booleanBits = spec.getAmountOfType(DataType.BOOLEAN);
-		for (int i = 0; i < Math.ceil(booleanBits/8f); i++) {
-			int by = payload.readUnsignedByte();
-			for (int j = i*8; j < Math.min(spec.getBooleanKeys().size(), i+8); j++) {
-				token.putData(spec.getBooleanKeys().get(j), (by & (1 << (j-i))) != 0);
+		codec.metrics.recordReceived(codec.discriminatorBytes+payload.readableBytes());
+		InboundLimit limit = null;
+		if (spec.isLimited() && !codec.stateful) {
+			limit = admit(p, nm, codec);
+			if (limit == null) return;
+		}
+		long start = System.nanoTime();
+		Token token = new Token(codec);
+		if (codec.delta) {
+			if (!readDelta(side, nm, codec, payload, token.getValues())) return;
+		} else if (codec.interned) {
+			ConnectionState state = stateOf(nm);
+			synchronized (state) {
+				codec.decode(payload, token.getValues(), state.receivedStrings);
+			}
+		} else {
+			codec.decode(payload, token.getValues(), null);
+		}
+		codec.metrics.getDecodeTime().record(System.nanoTime()-start);
+		if (spec.isLimited() && codec.stateful) {
+			// decoded even if it gets dropped, as the sender's next delta or
+			// interned string assumes we saw this one
+			limit = admit(p, nm, codec);
+			if (limit == null) return;
+		}
+		if (limit != null && spec.getMaxQueued() <= 0) {
+			// only queue limits need to follow the packet any further
+			limit = null;
+		}
+		if (codec.dataSlots.length > 0) {
+			// data fields are slices of the payload
+			token.hold(payload);
+		}
+		try {
+			if (spec.getExecutor() != null) {
+				handleAsync(side, spec, p, token, limit);
+			} else if (!spec.isHandledOnMainThread()) {
+				long handlerStart = System.nanoTime();
+				try {
+					spec.getConsumer().accept(p, token);
+				} finally {
+					codec.metrics.getHandlerTime().record(System.nanoTime()-handlerStart);
+				}
+			} else {
+				BiConsumer<EntityPlayer, Token> handler = spec.getConsumer();
+				if (limit != null) {
+					limit.queued.incrementAndGet();
+					handler = limit.track(handler);
+				}
+				if (network == null) {
+					MainThreadQueue.schedule(side, handler, p, token);
+				} else {
+					(side.isClient() ? clientQueue : serverQueue).add(handler, p, token);
+				}
+			}
+		} finally {
+			token.release();
+		}
+	}
+	
+	private void handleAsync(Side side, PacketSpec spec, EntityPlayer p, Token token, InboundLimit limit) {
+		StripedExecutor executor = executors.get(spec.getExecutor());
+		Runnable handler;
+		if (spec.getResultHandler() == null) {
+			handler = () -> spec.getConsumer().accept(p, token);
+		} else {
+			handler = () -> {
+				Object result = spec.getAsyncFunction().apply(p, token);
+				Runnable then = () -> spec.getResultHandler().accept(p, result);
+				if (network == null) {
+					MainThreadQueue.schedule(side, then);
+				} else {
+					(side.isClient() ? clientQueue : serverQueue).post(spec.getIdentifier(), then);
+				}
+			};
+		}
+		PacketMetrics metrics = token.getValues().codec.metrics;
+		long queuedAt = System.nanoTime();
+		Runnable task = () -> {
+			long start = System.nanoTime();
+			metrics.getQueueTime().record(start-queuedAt);
+			try {
+				handler.run();
+			} finally {
+				metrics.getHandlerTime().record(System.nanoTime()-start);
 			}
+		};
+		if (limit == null) {
+			executor.execute(p, token, task);
+			return;
+		}
+		limit.queued.incrementAndGet();
+		Runnable inner = task;
+		try {
+			executor.execute(p, token, () -> {
+				try {
+					inner.run();
+				} finally {
+					limit.queued.decrementAndGet();
+				}
+			});
+		} catch (RuntimeException e) {
+			limit.queued.decrementAndGet();
+			throw e;
 		}
-		for (Map.Entry<String, DataType> en : spec.getData().entrySet()) {
-			if (en.getValue().reader != null) {
-				token.putData(en.getKey(), en.getValue().reader.apply(payload));
+	}
+	
+	/**
+	 * Decodes a delta encoded packet, filling in what it left out from the
+	 * last one received over the same connection.
+	 * 
+	 * @return false if the baseline it needs is missing, in which case a
+	 * 		resync has been requested and the packet should be dropped
+	 */
+	private boolean readDelta(Side side, NetworkManager nm, PacketCodec codec, ByteBuf payload, Slots values) {
+		int mode = payload.readUnsignedByte();
+		if (mode == PacketCodec.MODE_STANDALONE) {
+			codec.decode(payload, values, null);
+			return true;
+		}
+		ConnectionState state = stateOf(nm);
+		synchronized (state) {
+			StringDictionary strings = codec.interned ? state.receivedStrings : null;
+			if (mode == PacketCodec.MODE_FULL) {
+				codec.decode(payload, values, strings);
+				state.receivedBaselines.put(codec.stateKey(values), baseline(codec, values));
+				state.resyncsRequested.remove(codec);
+				return true;
+			} else if (mode == PacketCodec.MODE_DELTA) {
+				codec.decodeDeltaKey(payload, values, strings);
+				StateKey key = codec.stateKey(values);
+				Slots baseline = state.receivedBaselines.get(key);
+				if (baseline == null) {
+					if (strings != null) {
+						// still has to be read for the strings it defines
+						codec.decodeDelta(payload, values, null, strings);
+					}
+					// we've forgotten it, have the other side send it again
+					if (!state.requestResync(codec, System.nanoTime())) return false;
+					resyncsRequested.incrementAndGet();
+					ByteBuf buf = Unpooled.buffer();
+					buf.writeByte(RESYNC_ID);
+					WireFormat.writeVarInt(buf, codec.discriminator, 5);
+					codec.encodeDeltaKey(values, buf);
+					if (side.isServer()) {
+						nm.sendPacket(new S3FPacketCustomPayload(channel, new PacketBuffer(buf)));
+					} else {
+						nm.sendPacket(new C17PacketCustomPayload(channel, new PacketBuffer(buf)));
+					}
+					return false;
+				}
+				codec.decodeDelta(payload, values, baseline, strings);
+				state.receivedBaselines.put(key, baseline(codec, values));
+				return true;
+			} else {
+				throw new IllegalArgumentException("Unknown delta mode "+mode+" for packet '"+codec.spec.getIdentifier()+"'");
 			}
 		}
-		spec.getConsumer().accept(p, token);
 	}
 
 
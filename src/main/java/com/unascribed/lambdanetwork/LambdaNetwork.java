@@ -1,25 +1,44 @@
 package com.unascribed.lambdanetwork;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import com.google.common.collect.ImmutableMap;
 
+import net.minecraft.command.CommandBase;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+
 public class LambdaNetwork {
 	private LambdaChannel soleChannel;
 	private final ImmutableMap<String, LambdaChannel> channels;
+	private final PlayerGrid playerGrid = new PlayerGrid();
+	private final ChunkWatchers chunkWatchers = new ChunkWatchers();
+	private final NetworkTicker ticker;
 	
 	public LambdaNetwork(Map<String, List<PacketSpec>> packets) {
-		
+		this(packets, Collections.<String, ChannelConfig>emptyMap());
+	}
+	
+	LambdaNetwork(Map<String, List<PacketSpec>> packets, Map<String, ChannelConfig> configs) {
 		ImmutableMap.Builder<String, LambdaChannel> builder = ImmutableMap.builder();
 		for (Map.Entry<String, List<PacketSpec>> en : packets.entrySet()) {
-			LambdaChannel channel = new LambdaChannel(en.getKey(), en.getValue());
+			ChannelConfig config = configs.get(en.getKey());
+			if (config == null) {
+				config = new ChannelConfig();
+			}
+			LambdaChannel channel = new LambdaChannel(en.getKey(), en.getValue(), config, this);
 			builder.put(en.getKey(), channel);
 			if (packets.size() == 1) {
 				soleChannel = channel;
 			}
 		}
 		this.channels = builder.build();
+		this.ticker = new NetworkTicker(channels.values());
+		FMLCommonHandler.instance().bus().register(playerGrid);
+		FMLCommonHandler.instance().bus().register(ticker);
+		MinecraftForge.EVENT_BUS.register(chunkWatchers);
 	}
 	
 	public PendingPacket send() {
@@ -41,6 +60,24 @@ public class LambdaNetwork {
 		return channels.size();
 	}
 	
+	/**
+	 * Creates a server command with the given name that prints the
+	 * {@link PacketMetrics} of every packet on this network, or just the
+	 * given channel's, and can reset them. Register it from your mod's
+	 * FMLServerStartingEvent handler.
+	 */
+	public CommandBase createMetricsCommand(String name) {
+		return new MetricsCommand(name, channels);
+	}
+	
+	PlayerGrid getPlayerGrid() {
+		return playerGrid;
+	}
+	
+	ChunkWatchers getChunkWatchers() {
+		return chunkWatchers;
+	}
+	
 	public LambdaChannel getSoleChannel() {
 		if (channels.size() > 1) throw new IllegalStateException("Cannot get the sole channel when there are multiple");
 		return soleChannel;
@@ -4,10 +4,15 @@ import java.util.List;
 import java.util.Map;
 
 import com.google.common.collect.Lists;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 
+import io.netty.buffer.ByteBufAllocator;
+import net.minecraftforge.fml.relauncher.Side;
+
 public class LambdaNetworkBuilder {
 	private Map<String, List<PacketSpec>> packets = Maps.newHashMap();
+	private Map<String, ChannelConfig> configs = Maps.newHashMap();
 	protected String currentChannel;
 	
 	protected void addPacket(PacketSpec builder) {
@@ -36,6 +41,112 @@ public class LambdaNetworkBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets the allocator that outgoing packets on the current channel are
+	 * encoded into. Defaults to Netty's shared pooled allocator. Buffers are
+	 * sized exactly before encoding and released once they've been written
+	 * to the network.
+	 */
+	public LambdaNetworkBuilder allocator(ByteBufAllocator allocator) {
+		Preconditions.checkNotNull(allocator);
+		currentConfig().allocator = allocator;
+		return this;
+	}
+	
+	/**
+	 * Makes the current channel encode outgoing packets into direct buffers
+	 * instead of heap buffers. This saves a copy when the packet is written
+	 * to the socket, but makes local (singleplayer) sends more expensive.
+	 */
+	public LambdaNetworkBuilder directBuffers() {
+		currentConfig().directBuffers = true;
+		return this;
+	}
+	
+	/**
+	 * Makes the current channel bundle the packets sent to each player during
+	 * a server tick, so they go out together as a single custom payload at the
+	 * end of the tick instead of one each. This saves a lot of overhead when
+	 * many small packets are sent to the same players every tick, at the cost
+	 * of delaying them until the tick ends.
+	 * <p>
+	 * Only sends made on the server thread are bundled; sends from other
+	 * threads go out immediately. Packets from
+	 * {@link PreparedPacket#toClientboundVanillaPackets()} that are sent by
+	 * hand skip the bundle, and can arrive before packets sent earlier.
+	 */
+	public LambdaNetworkBuilder bundled() {
+		currentConfig().bundled = true;
+		return this;
+	}
+	
+	/**
+	 * Makes the current channel compress its payloads with one deflate stream
+	 * per connection, so that each payload can reuse what was learned from
+	 * the ones before it. Works much better than vanilla's compression on
+	 * lots of small, similar payloads, and best combined with
+	 * {@link #bundled()}. Local connections are never compressed.
+	 * 
+	 * @param level the deflate level, from 0 to 9, or -1 for the default
+	 * @param minimumSize payloads (or bundles) smaller than this many bytes
+	 * 		are sent uncompressed
+	 */
+	public LambdaNetworkBuilder compressed(int level, int minimumSize) {
+		Preconditions.checkArgument(level >= -1 && level <= 9, "compression level must be between -1 and 9");
+		Preconditions.checkArgument(minimumSize >= 0, "minimum size must not be negative");
+		currentConfig().compressionLevel = level;
+		currentConfig().compressionThreshold = minimumSize;
+		return this;
+	}
+	
+	/**
+	 * Makes the current channel compress its payloads at the default level,
+	 * leaving payloads under 64 bytes uncompressed.
+	 * 
+	 * @see #compressed(int, int)
+	 */
+	public LambdaNetworkBuilder compressed() {
+		return compressed(-1, 64);
+	}
+	
+	/**
+	 * Sets how many bytes of {@link PacketSpec#streamed() streamed} packets
+	 * the current channel sends to each player per tick. Defaults to 64KiB,
+	 * or a bit over 1MiB a second.
+	 */
+	public LambdaNetworkBuilder streamingBudget(int bytesPerTick) {
+		Preconditions.checkArgument(bytesPerTick > 0, "streaming budget must be positive");
+		currentConfig().streamingBudget = bytesPerTick;
+		return this;
+	}
+	
+	/**
+	 * Limits how much of each tick the current channel spends running
+	 * {@link PacketSpec#handledOnMainThreadBy main thread} handlers. Once
+	 * either limit is reached, the rest of the packets wait for the next
+	 * tick, so a flood of packets slows down their handling instead of the
+	 * game. Defaults to no packet limit and 10 milliseconds.
+	 */
+	public LambdaNetworkBuilder mainThreadBudget(int packetsPerTick, int millisPerTick) {
+		Preconditions.checkArgument(packetsPerTick > 0, "main thread packet budget must be positive");
+		Preconditions.checkArgument(millisPerTick > 0, "main thread time budget must be positive");
+		currentConfig().mainThreadPackets = packetsPerTick;
+		currentConfig().mainThreadNanos = millisPerTick*1000000L;
+		return this;
+	}
+	
+	protected ChannelConfig currentConfig() {
+		if (currentChannel == null) {
+			throw new IllegalArgumentException("Cannot configure a channel without a channel!");
+		}
+		ChannelConfig config = configs.get(currentChannel);
+		if (config == null) {
+			config = new ChannelConfig();
+			configs.put(currentChannel, config);
+		}
+		return config;
+	}
+	
 	public PacketSpec packet(String identifier) {
 		if (currentChannel == null) {
 			throw new IllegalArgumentException("Cannot add packets without a channel!");
@@ -43,7 +154,30 @@ public class LambdaNetworkBuilder {
 		return PacketSpec.mutableBuilder(this, identifier);
 	}
 	
+	/**
+	 * @return the packets declared on the given channel so far, for working
+	 * 		with their codecs without building a network
+	 */
+	List<PacketSpec> getPackets(String channel) {
+		return packets.get(channel);
+	}
+	
+	/**
+	 * Builds a codec for the given channel's packets that works in any Netty
+	 * pipeline, without registering anything with Forge.
+	 * 
+	 * @param side the side this end of the pipeline plays; it handles
+	 * 		packets bound to this side and sends the others
+	 */
+	public LambdaPipelineCodec buildPipelineCodec(String channel, Side side) {
+		List<PacketSpec> list = packets.get(channel);
+		if (list == null) {
+			throw new IllegalArgumentException("No such channel '"+channel+"'");
+		}
+		return new LambdaPipelineCodec(channel, side, list);
+	}
+	
 	public LambdaNetwork build() {
-		return new LambdaNetwork(packets);
+		return new LambdaNetwork(packets, configs);
 	}
 }
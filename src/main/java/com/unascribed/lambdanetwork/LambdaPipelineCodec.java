@@ -0,0 +1,195 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageCodec;
+import net.minecraftforge.fml.relauncher.Side;
+
+/**
+ * Speaks a channel's packets over a plain Netty pipeline, without Forge's
+ * networking or a running game, for things like proxies and backend services
+ * that share packet definitions with a mod. Build one with
+ * {@link LambdaNetworkBuilder#buildPipelineCodec}.
+ * <p>
+ * The Minecraft and Forge classes still need to be on the classpath, as
+ * packets are bound to FML's {@link Side} and the NBT, BlockPos and Vec3
+ * data types are read and written as Minecraft's own types. Nothing
+ * else of the game's is touched.
+ * <p>
+ * Each inbound buffer must be exactly one packet, so put a frame decoder in
+ * front of this, such as a LengthFieldBasedFrameDecoder and
+ * LengthFieldPrepender pair. Write {@link PendingPacket}s from
+ * {@link #send(String)} to send packets.
+ * <p>
+ * Received packets are handed to their handlers with a null player.
+ * {@link PacketSpec#handledAsyncBy Async handlers} run on their executor, in
+ * order for each Netty channel, and get their results back on the channel's
+ * event loop. Every other handler runs on the event loop, since there's no
+ * main thread to hand packets to, and rate limits aren't applied.
+ * <p>
+ * Only single packets go over a pipeline; bundling, compression, streaming,
+ * delta baselines and interned string dictionaries are features of the
+ * game's connection. Delta encoded packets are always sent whole, and
+ * interned strings are sent inline, which {@link LambdaChannel} can read as
+ * well.
+ */
+@Sharable
+public class LambdaPipelineCodec extends MessageToMessageCodec<ByteBuf, PendingPacket> {
+	private final String channel;
+	/** the side this end of the pipeline plays */
+	private final Side side;
+	private final ImmutableMap<String, PacketCodec> codecs;
+	/** indexed by id minus {@link LambdaChannel#CONTROL_IDS} */
+	private final PacketCodec[] codecsById;
+	private final long schemaFingerprint;
+	/** keeps each Netty channel's packets in order, for each executor async handlers use */
+	private final Map<Executor, StripedExecutor> executors = Maps.newIdentityHashMap();
+
+	LambdaPipelineCodec(String channel, Side side, List<PacketSpec> packets) {
+		this.channel = channel;
+		this.side = side;
+		this.codecsById = LambdaChannel.assignIds(packets);
+		ImmutableMap.Builder<String, PacketCodec> builder = ImmutableMap.builder();
+		for (PacketCodec codec : codecsById) {
+			builder.put(codec.spec.getIdentifier(), codec);
+			Executor executor = codec.spec.getExecutor();
+			if (executor != null && !executors.containsKey(executor)) {
+				executors.put(executor, new StripedExecutor(executor));
+			}
+		}
+		this.codecs = builder.build();
+		this.schemaFingerprint = LambdaChannel.fingerprint(codecsById);
+	}
+
+	/**
+	 * @return a new packet to fill in and write to the pipeline. only
+	 * 		{@link PendingPacket#with with} can be used on it; the send
+	 * 		methods need a game connection
+	 */
+	public PendingPacket send(String packet) {
+		return new PendingPacket(getCodec(packet));
+	}
+
+	public PacketSpec getPacketSpec(String packet) {
+		return getCodec(packet).spec;
+	}
+
+	/**
+	 * @return the same fingerprint as {@link LambdaChannel#getSchemaFingerprint}
+	 * 		for a channel with the same packets, for checking both ends agree
+	 */
+	public long getSchemaFingerprint() {
+		return schemaFingerprint;
+	}
+
+	public PacketMetrics getMetrics(String packet) {
+		return getCodec(packet).metrics;
+	}
+
+	private PacketCodec getCodec(String packet) {
+		PacketCodec codec = codecs.get(packet);
+		if (codec == null) {
+			throw new IllegalArgumentException("No such packet '"+packet+"' on channel '"+channel+"'");
+		}
+		return codec;
+	}
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, PendingPacket pp, List<Object> out) throws Exception {
+		PacketCodec codec = pp.getCodec();
+		if (codec == null || codecs.get(codec.spec.getIdentifier()) != codec) {
+			throw new IllegalArgumentException("Packets written to a pipeline must come from its codec's send method");
+		}
+		if (codec.spec.getSide() == side) {
+			throw new IllegalArgumentException("Packet '"+codec.spec.getIdentifier()+"' is bound to side "+side+" and can't be sent from it");
+		}
+		Slots values = pp.getValues();
+		values.checkComplete();
+		long start = System.nanoTime();
+		ByteBuf buf = ctx.alloc().buffer(codec.sizeOf(values));
+		try {
+			codec.encode(values, buf);
+		} catch (RuntimeException e) {
+			buf.release();
+			throw e;
+		}
+		codec.metrics.getEncodeTime().record(System.nanoTime()-start);
+		codec.metrics.recordSent(buf.readableBytes());
+		codec.metrics.getRecipients().record(1);
+		out.add(buf);
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+		int id = WireFormat.readVarInt(msg, 5);
+		if (id < LambdaChannel.CONTROL_IDS || id-LambdaChannel.CONTROL_IDS >= codecsById.length) {
+			throw new IllegalArgumentException("Unknown lambda packet id "+id);
+		}
+		PacketCodec codec = codecsById[id-LambdaChannel.CONTROL_IDS];
+		PacketSpec spec = codec.spec;
+		if (spec.getSide() != side) {
+			throw new IllegalArgumentException("Packet '"+spec.getIdentifier()+"' is not valid for side "+side);
+		}
+		codec.metrics.recordReceived(codec.discriminatorBytes+msg.readableBytes());
+		long start = System.nanoTime();
+		Token token = new Token(codec);
+		if (codec.delta) {
+			int mode = msg.readUnsignedByte();
+			if (mode != PacketCodec.MODE_STANDALONE && mode != PacketCodec.MODE_FULL) {
+				throw new IllegalArgumentException("Packet '"+spec.getIdentifier()+"' can't be delta encoded over a pipeline");
+			}
+		}
+		codec.decode(msg, token.getValues(), null);
+		codec.metrics.getDecodeTime().record(System.nanoTime()-start);
+		if (codec.dataSlots.length > 0) {
+			// data fields are slices of the message
+			token.hold(msg);
+		}
+		try {
+			if (spec.getExecutor() != null) {
+				handleAsync(ctx, spec, token);
+			} else {
+				long handlerStart = System.nanoTime();
+				try {
+					spec.getConsumer().accept(null, token);
+				} finally {
+					codec.metrics.getHandlerTime().record(System.nanoTime()-handlerStart);
+				}
+			}
+		} finally {
+			token.release();
+		}
+	}
+
+	private void handleAsync(ChannelHandlerContext ctx, PacketSpec spec, Token token) {
+		Runnable handler;
+		if (spec.getResultHandler() == null) {
+			handler = () -> spec.getConsumer().accept(null, token);
+		} else {
+			handler = () -> {
+				Object result = spec.getAsyncFunction().apply(null, token);
+				ctx.channel().eventLoop().execute(() -> spec.getResultHandler().accept(null, result));
+			};
+		}
+		PacketMetrics metrics = token.getValues().codec.metrics;
+		long queuedAt = System.nanoTime();
+		executors.get(spec.getExecutor()).execute(ctx.channel(), token, () -> {
+			long start = System.nanoTime();
+			metrics.getQueueTime().record(start-queuedAt);
+			try {
+				handler.run();
+			} finally {
+				metrics.getHandlerTime().record(System.nanoTime()-start);
+			}
+		});
+	}
+
+}
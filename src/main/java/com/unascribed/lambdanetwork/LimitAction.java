@@ -0,0 +1,19 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * What to do with a packet from a player who has gone over its
+ * {@link PacketSpec#rateLimited rate} or {@link PacketSpec#maxQueued queue}
+ * limit.
+ */
+public enum LimitAction {
+	/** drop the packet without handling it */
+	DROP,
+	/** drop the packet and disconnect the player */
+	KICK,
+	/**
+	 * handle the packet anyway, but stop reading from the player's
+	 * connection until they're back under the limit, so the client's sends
+	 * back up behind TCP instead of piling up on the server
+	 */
+	THROTTLE
+}
@@ -0,0 +1,15 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on an integer data entry, read and written as a long. From
+ * {@link PacketSpec#longField(String)}.
+ */
+public final class LongField extends DataField {
+	/** whether values have to be checked against a range */
+	final boolean ranged;
+	
+	LongField(PacketSpec spec, String key) {
+		super(spec, key);
+		this.ranged = spec.getType(key).isBounded();
+	}
+}
@@ -0,0 +1,145 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+/**
+ * Packets waiting to be {@link PacketSpec#handledOnMainThreadBy handled on}
+ * one side's main thread. Network threads add to it without locking, and the
+ * main thread drains it in one go at the start of each tick, stopping early
+ * once the channel's budget runs out so that a flood of packets spills over
+ * into later ticks instead of stalling one.
+ */
+final class MainThreadQueue {
+	private static final Logger log = LogManager.getLogger("LambdaNetwork");
+
+	private static final class Entry {
+		/** the packet this is for, for error messages */
+		final String what;
+		final Runnable task;
+
+		Entry(String what, Runnable task) {
+			this.what = what;
+			this.task = task;
+		}
+	}
+
+	private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+	/** kept separately, since counting a ConcurrentLinkedQueue walks it */
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	/**
+	 * Queues the given packet. The token is retained until it's been
+	 * handled.
+	 */
+	void add(BiConsumer<EntityPlayer, Token> handler, EntityPlayer player, Token token) {
+		post(token.getValues().codec.spec.getIdentifier(), timed(handler, player, token));
+	}
+	
+	/**
+	 * Retains the given token and wraps its handler in a task that records
+	 * how long it waited and how long it took, then releases the token.
+	 */
+	private static Runnable timed(BiConsumer<EntityPlayer, Token> handler, EntityPlayer player, Token token) {
+		token.retain();
+		PacketMetrics metrics = token.getValues().codec.metrics;
+		long queuedAt = System.nanoTime();
+		return () -> {
+			long start = System.nanoTime();
+			metrics.getQueueTime().record(start-queuedAt);
+			try {
+				handler.accept(player, token);
+			} finally {
+				metrics.getHandlerTime().record(System.nanoTime()-start);
+				token.release();
+			}
+		};
+	}
+	
+	/**
+	 * Queues an arbitrary task on behalf of the given packet.
+	 */
+	void post(String what, Runnable task) {
+		entries.add(new Entry(what, task));
+		depth.incrementAndGet();
+	}
+
+	/**
+	 * Handles queued packets in the order they arrived, until the queue is
+	 * empty or either budget runs out. Only called from the main thread.
+	 */
+	void drain(int maxPackets, long maxNanos) {
+		if (depth.get() == 0) return;
+		long start = System.nanoTime();
+		int count = 0;
+		Entry e;
+		while (count < maxPackets && (e = entries.poll()) != null) {
+			depth.decrementAndGet();
+			count++;
+			try {
+				e.task.run();
+			} catch (RuntimeException ex) {
+				// the scheduler would have swallowed this too, and one bad
+				// packet shouldn't take the rest of the queue with it
+				log.error("Error handling lambda packet '"+e.what+"'", ex);
+			}
+			if (System.nanoTime()-start >= maxNanos) break;
+		}
+		handled.addAndGet(count);
+		int left = depth.get();
+		if (left > 0) {
+			deferred.addAndGet(left);
+		}
+	}
+
+	int depth() {
+		return depth.get();
+	}
+
+	long handled() {
+		return handled.get();
+	}
+
+	long deferred() {
+		return deferred.get();
+	}
+
+	/**
+	 * Schedules the given packet with the game's own scheduler, one task per
+	 * packet. Used by channels that aren't part of a LambdaNetwork, since
+	 * nothing drains their queues.
+	 */
+	static void schedule(Side side, BiConsumer<EntityPlayer, Token> handler, EntityPlayer player, Token token) {
+		schedule(side, timed(handler, player, token));
+	}
+	
+	/**
+	 * Schedules an arbitrary task with the game's own scheduler.
+	 */
+	static void schedule(Side side, Runnable task) {
+		if (side.isClient()) {
+			scheduleClient(task);
+		} else {
+			MinecraftServer.getServer().addScheduledTask(task);
+		}
+	}
+
+	@SideOnly(Side.CLIENT)
+	private static void scheduleClient(Runnable task) {
+		Minecraft.getMinecraft().addScheduledTask(task);
+	}
+
+}
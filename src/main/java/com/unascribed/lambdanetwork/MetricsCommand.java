@@ -0,0 +1,96 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.ChatComponentText;
+
+/**
+ * Prints the {@link PacketMetrics} of every packet on a network that has
+ * been sent or received, or resets them. Created by
+ * {@link LambdaNetwork#createMetricsCommand(String)}, since the network has
+ * no mod of its own to register it.
+ */
+final class MetricsCommand extends CommandBase {
+	private final String name;
+	private final ImmutableMap<String, LambdaChannel> channels;
+
+	MetricsCommand(String name, ImmutableMap<String, LambdaChannel> channels) {
+		this.name = name;
+		this.channels = channels;
+	}
+
+	@Override
+	public String getCommandName() {
+		return name;
+	}
+
+	@Override
+	public String getCommandUsage(ICommandSender sender) {
+		return "/"+name+" [channel] [reset]";
+	}
+
+	@Override
+	public void processCommand(ICommandSender sender, String[] args) throws CommandException {
+		if (args.length > 2) throw new WrongUsageException(getCommandUsage(sender));
+		boolean reset = args.length > 0 && "reset".equals(args[args.length-1]);
+		String only = args.length > (reset ? 1 : 0) ? args[0] : null;
+		if (only != null && !channels.containsKey(only)) {
+			throw new CommandException("No such channel '"+only+"'");
+		}
+		int shown = 0;
+		for (Map.Entry<String, LambdaChannel> en : channels.entrySet()) {
+			if (only != null && !only.equals(en.getKey())) continue;
+			for (Map.Entry<String, PacketMetrics> packet : en.getValue().getMetrics().entrySet()) {
+				PacketMetrics m = packet.getValue();
+				if (reset) {
+					m.reset();
+				} else if (m.getSent() > 0 || m.getReceived() > 0) {
+					print(sender, en.getKey()+"/"+packet.getKey(), m);
+					shown++;
+				}
+			}
+		}
+		if (reset) {
+			sender.addChatMessage(new ChatComponentText("Packet metrics reset"));
+		} else if (shown == 0) {
+			sender.addChatMessage(new ChatComponentText("No packets sent or received yet"));
+		}
+	}
+
+	private static void print(ICommandSender sender, String name, PacketMetrics m) {
+		sender.addChatMessage(new ChatComponentText(name+": sent "+m.getSent()+" ("+m.getBytesSent()+" bytes, "
+				+String.format("%.1f", m.getRecipients().getMean())+" recipients per send), received "
+				+m.getReceived()+" ("+m.getBytesReceived()+" bytes)"));
+		sender.addChatMessage(new ChatComponentText("  p50/p99/max in us: encode "+times(m.getEncodeTime())
+				+", decode "+times(m.getDecodeTime())+", handler "+times(m.getHandlerTime())
+				+", queued "+times(m.getQueueTime())));
+	}
+
+	private static String times(Histogram h) {
+		if (h.getCount() == 0) return "-";
+		return micros(h.getPercentile(50))+"/"+micros(h.getPercentile(99))+"/"+micros(h.getMax());
+	}
+
+	private static String micros(long nanos) {
+		return String.format("%.1f", nanos/1000D);
+	}
+
+	@Override
+	public List<String> addTabCompletionOptions(ICommandSender sender, String[] args, BlockPos pos) {
+		if (args.length == 1) {
+			return getListOfStringsMatchingLastWord(args, channels.keySet());
+		} else if (args.length == 2) {
+			return getListOfStringsMatchingLastWord(args, "reset");
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Collection;
+
+import com.google.common.collect.ImmutableList;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedInEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent.ClientDisconnectionFromServerEvent;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent.ServerDisconnectionFromClientEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ClientTickEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.ServerTickEvent;
+
+/**
+ * Does the per-tick and per-connection work for the channels of a
+ * {@link LambdaNetwork}, such as running main thread handlers in batches at
+ * the start of each tick, flushing queued packets at the end of each server
+ * tick, checking that new players agree on the channels' packets, and
+ * cleaning up after connections that close.
+ * <p>
+ * Public only so that the event bus can call it.
+ */
+public final class NetworkTicker {
+	private final ImmutableList<LambdaChannel> channels;
+
+	NetworkTicker(Collection<LambdaChannel> channels) {
+		this.channels = ImmutableList.copyOf(channels);
+	}
+
+
+	@SubscribeEvent
+	public void onServerTick(ServerTickEvent e) {
+		if (e.phase == Phase.START) {
+			for (int i = 0; i < channels.size(); i++) {
+				channels.get(i).drainServerQueue();
+			}
+		} else if (e.phase == Phase.END) {
+			for (int i = 0; i < channels.size(); i++) {
+				channels.get(i).flushQueued();
+				channels.get(i).pumpTransfers();
+			}
+		}
+	}
+
+	@SubscribeEvent
+	public void onClientTick(ClientTickEvent e) {
+		if (e.phase == Phase.START) {
+			for (int i = 0; i < channels.size(); i++) {
+				channels.get(i).drainClientQueue();
+			}
+		}
+	}
+
+	@SubscribeEvent
+	public void onLoggedIn(PlayerLoggedInEvent e) {
+		if (e.player instanceof EntityPlayerMP) {
+			for (int i = 0; i < channels.size(); i++) {
+				channels.get(i).sendSchema((EntityPlayerMP)e.player);
+			}
+		}
+	}
+
+	@SubscribeEvent
+	public void onServerDisconnection(ServerDisconnectionFromClientEvent e) {
+		for (int i = 0; i < channels.size(); i++) {
+			channels.get(i).connectionClosed(e.manager);
+		}
+	}
+
+	@SubscribeEvent
+	public void onClientDisconnection(ClientDisconnectionFromServerEvent e) {
+		for (int i = 0; i < channels.size(); i++) {
+			channels.get(i).connectionClosed(e.manager);
+		}
+	}
+
+}
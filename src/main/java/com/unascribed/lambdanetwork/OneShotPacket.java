@@ -0,0 +1,89 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.INetHandlerPlayClient;
+import net.minecraft.network.play.INetHandlerPlayServer;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+/**
+ * The PreparedPacket behind the send methods of {@link PendingPacket}. It's
+ * only used for a single send call, so it encodes lazily into a pooled buffer
+ * and must be {@link #release() released} afterwards.
+ */
+final class OneShotPacket extends PreparedPacket {
+	private final PendingPacket source;
+	private ByteBuf payload;
+	private Slots snapshot;
+
+	OneShotPacket(PendingPacket source) {
+		super(source.getChannel(), source.getCodec(), null, source.getValues());
+		this.source = source;
+	}
+
+	@Override
+	ByteBuf payload() {
+		if (payload == null) {
+			payload = channel.encode(source);
+		}
+		return payload;
+	}
+
+	@Override
+	Slots snapshot() {
+		// the pending packet can be changed and sent again, so baselines
+		// need their own copy
+		if (snapshot == null) {
+			snapshot = source.getValues().copy();
+		}
+		return snapshot;
+	}
+
+	@Override
+	boolean sendTo(EntityPlayerMP player) {
+		if (player.playerNetServerHandler == null) return false; // fake players
+		if (codec.stateful) {
+			channel.sendStatefulToClient(player, this);
+		} else {
+			ByteBuf buf = payload();
+			codec.metrics.recordSent(buf.readableBytes());
+			channel.sendToClient(player, codec, buf, coalesceKey());
+		}
+		return true;
+	}
+
+	@Override
+	@SideOnly(Side.CLIENT)
+	void sendToServer() {
+		if (codec.stateful) {
+			channel.sendStatefulToServer(this);
+		} else {
+			ByteBuf buf = payload();
+			codec.metrics.recordSent(buf.readableBytes());
+			channel.sendToServer(buf);
+		}
+	}
+
+	@Override
+	List<Packet<INetHandlerPlayClient>> clientboundPackets() {
+		// we can't tell when these get released, so they get a copy
+		return channel.toClientboundPackets(channel.copy(payload()));
+	}
+
+	@Override
+	Packet<INetHandlerPlayServer> serverboundPacket() {
+		return channel.toServerboundPacket(channel.copy(payload()));
+	}
+
+	void release() {
+		if (payload != null) {
+			payload.release();
+			payload = null;
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The payloads waiting to be sent to one player at the end of the tick.
+ * Payloads with a {@link StateKey} replace the earlier payload with the
+ * same key, keeping its place in the queue.
+ */
+final class OutboundQueue {
+	final List<ByteBuf> payloads = Lists.newArrayListWithCapacity(4);
+	/** queue positions of the coalescing payloads, created on first use */
+	private Map<StateKey, Integer> positions;
+
+	/**
+	 * Adds a payload to the queue, taking over the caller's reference to it.
+	 * 
+	 * @return true if it replaced an earlier payload
+	 */
+	boolean add(ByteBuf payload, StateKey key) {
+		if (key != null) {
+			if (positions == null) {
+				positions = Maps.newHashMap();
+			}
+			Integer idx = positions.get(key);
+			if (idx != null) {
+				payloads.set(idx, payload).release();
+				return true;
+			}
+			positions.put(key, payloads.size());
+		}
+		payloads.add(payload);
+		return false;
+	}
+
+}
@@ -0,0 +1,24 @@
+package com.unascribed.lambdanetwork;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A streamed packet on its way to one player. The payload is a retained
+ * duplicate, so its reader index tracks how much has been sent.
+ */
+final class OutboundTransfer {
+	final int id;
+	final int length;
+	final ByteBuf payload;
+
+	OutboundTransfer(int id, ByteBuf payload) {
+		this.id = id;
+		this.length = payload.readableBytes();
+		this.payload = payload;
+	}
+
+	int offset() {
+		return length-payload.readableBytes();
+	}
+
+}
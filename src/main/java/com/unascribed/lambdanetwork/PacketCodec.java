@@ -0,0 +1,684 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * A precompiled encode/decode plan for one packet on one channel. Built once
+ * when the network is built, so that encoding and decoding are straight loops
+ * over arrays instead of map walks and list scans on every packet.
+ */
+final class PacketCodec {
+	/*
+	 * delta encoded packets follow their discriminator with one of these.
+	 * standalone packets are complete but leave the baselines alone, since
+	 * they're used wherever the recipients aren't known, such as the shared
+	 * vanilla packets
+	 */
+	static final int MODE_STANDALONE = 0;
+	static final int MODE_FULL = 1;
+	static final int MODE_DELTA = 2;
+
+	/** data buffers at least this big are sliced into payloads instead of copied */
+	static final int SLICE_THRESHOLD = 1024;
+
+	final PacketSpec spec;
+	/** this packet's id on its channel, sent as a varint */
+	final int discriminator;
+	/** size of the discriminator on the wire */
+	final int discriminatorBytes;
+
+	/** every key in the packet, in declaration order */
+	final String[] keys;
+	/** the type of each key, indexed the same as {@link #keys} */
+	final DataType[] types;
+
+	/** slot indices of the boolean fields, in bitfield order */
+	final int[] booleanSlots;
+	/** slot indices of the bounded and enum fields, in bitfield order after the booleans */
+	final int[] packedSlots;
+	/** slot indices of every other field, in wire order */
+	final int[] valueSlots;
+
+	/**
+	 * range and bit width of each bounded, enum or quantized field, indexed
+	 * by slot. quantized fields count steps, from 0
+	 */
+	final long[] minimums;
+	final long[] maximums;
+	final int[] bits;
+	/** minimum and step size of each fixed-point or quantized field, indexed by slot */
+	final double[] origins;
+	final double[] precisions;
+	/** constants of each enum field, indexed by slot */
+	final Enum<?>[][] enumConstants;
+
+	/** how many slots of each storage kind this packet uses */
+	final int longSlots;
+	final int doubleSlots;
+	final int referenceSlots;
+
+	/** slot indices of every field whose size depends on its value */
+	final int[] variableSlots;
+	/** slot indices of the ARBITRARY fields */
+	final int[] dataSlots;
+
+	/** size of the bitfield holding the booleans and the packed fields */
+	final int bitfieldBytes;
+	/** size of the discriminator, the bitfield, and every field's minimum */
+	final int minimumSize;
+	/** size of the discriminator, the bitfield, and every fixed-size field */
+	final int fixedSize;
+
+	/** slot indices of the coalescing or delta keys, or null if there are none */
+	final int[] keySlots;
+	final boolean coalesce;
+	final boolean delta;
+	/** whether this packet's interned strings use each connection's dictionary */
+	final boolean interned;
+	/**
+	 * whether sends of this packet have to be encoded separately for each
+	 * connection, in the order they go out
+	 */
+	final boolean stateful;
+	/** slot indices of the non-boolean key fields, in wire order */
+	final int[] deltaKeySlots;
+	/** slot indices of the fields a delta can leave out, in wire order */
+	final int[] deltaSlots;
+	final int deltaMaskBytes;
+
+	/**
+	 * generated writer and reader for the fields after the bitfield, or null
+	 * if they go through {@link #writeSlot} and {@link #readSlot}
+	 */
+	final FieldCodec fields;
+
+	/** how many sends of this packet were replaced by a later one */
+	final AtomicLong coalesced = new AtomicLong();
+	/** what this packet has been costing, for {@link LambdaChannel#getMetrics} */
+	final PacketMetrics metrics = new PacketMetrics();
+
+	PacketCodec(PacketSpec spec, int discriminator) {
+		this(spec, discriminator, true);
+	}
+
+	/**
+	 * @param generate whether to try generating a class for this packet's
+	 * 		fields, rather than always interpreting them
+	 */
+	PacketCodec(PacketSpec spec, int discriminator, boolean generate) {
+		this.spec = spec;
+		this.discriminator = discriminator;
+		this.discriminatorBytes = WireFormat.varIntByteCount(discriminator);
+		int size = spec.getData().size();
+		this.keys = new String[size];
+		this.types = new DataType[size];
+		this.minimums = new long[size];
+		this.maximums = new long[size];
+		this.bits = new int[size];
+		this.origins = new double[size];
+		this.precisions = new double[size];
+		this.enumConstants = new Enum<?>[size][];
+		int booleans = 0;
+		int packed = 0;
+		int bitfieldBits = 0;
+		int longs = 0;
+		int doubles = 0;
+		int references = 0;
+		int i = 0;
+		for (Map.Entry<String, DataType> en : spec.getData().entrySet()) {
+			keys[i] = en.getKey();
+			types[i] = en.getValue();
+			if (en.getValue() == DataType.BOOLEAN) {
+				booleans++;
+				bitfieldBits++;
+			} else if (en.getValue() == DataType.QUANTIZED) {
+				origins[i] = spec.getMinimum(en.getKey());
+				precisions[i] = spec.getPrecision(en.getKey());
+				maximums[i] = Math.round((spec.getMaximum(en.getKey())-origins[i])/precisions[i]);
+				bits[i] = 64-Long.numberOfLeadingZeros(maximums[i]);
+				packed++;
+				bitfieldBits += bits[i];
+			} else if (en.getValue().isBounded()) {
+				minimums[i] = (long)spec.getMinimum(en.getKey());
+				maximums[i] = (long)spec.getMaximum(en.getKey());
+				bits[i] = 64-Long.numberOfLeadingZeros(maximums[i]-minimums[i]);
+				if (en.getValue() == DataType.ENUM) {
+					enumConstants[i] = (Enum<?>[])spec.getEnumType(en.getKey()).getEnumConstants();
+				}
+				packed++;
+				bitfieldBits += bits[i];
+			} else if (en.getValue() == DataType.FIXED) {
+				precisions[i] = spec.getPrecision(en.getKey());
+			}
+			switch (en.getValue().storage) {
+				case LONG: longs++; break;
+				case DOUBLE: doubles++; break;
+				default: references++; break;
+			}
+			i++;
+		}
+		this.longSlots = longs;
+		this.doubleSlots = doubles;
+		this.referenceSlots = references;
+		this.booleanSlots = new int[booleans];
+		this.packedSlots = new int[packed];
+		this.valueSlots = new int[size-booleans-packed];
+		int b = 0;
+		int p = 0;
+		int v = 0;
+		for (int j = 0; j < size; j++) {
+			if (types[j] == DataType.BOOLEAN) {
+				booleanSlots[b++] = j;
+			} else if (types[j].isBounded()) {
+				packedSlots[p++] = j;
+			} else {
+				valueSlots[v++] = j;
+			}
+		}
+		List<Integer> data = Lists.newArrayList();
+		for (int j : valueSlots) {
+			if (types[j] == DataType.ARBITRARY) {
+				data.add(j);
+			}
+		}
+		this.dataSlots = Ints.toArray(data);
+		this.bitfieldBytes = (bitfieldBits+7)/8;
+		this.coalesce = spec.getCoalesceKeys() != null;
+		this.delta = spec.getDeltaKeys() != null;
+		// a coalesced send can be replaced, and a streamed one can arrive
+		// after later sends, either of which would lose a definition
+		this.interned = spec.getAmountOfType(DataType.INTERNED_STRING) > 0 && !coalesce && !spec.isStreamed();
+		this.stateful = delta || interned;
+		// delta packets also have a mode byte
+		int min = discriminatorBytes + (delta ? 1 : 0) + bitfieldBytes;
+		int fixed = min;
+		int variable = 0;
+		for (int j : valueSlots) {
+			min += types[j].minimumSize;
+			if (types[j].isVariableSize()) {
+				variable++;
+			} else {
+				fixed += types[j].minimumSize;
+			}
+		}
+		this.minimumSize = min;
+		this.fixedSize = fixed;
+		this.variableSlots = new int[variable];
+		int k = 0;
+		for (int j : valueSlots) {
+			if (types[j].isVariableSize()) {
+				variableSlots[k++] = j;
+			}
+		}
+		List<String> stateKeys = coalesce ? spec.getCoalesceKeys() : spec.getDeltaKeys();
+		if (stateKeys != null) {
+			this.keySlots = new int[stateKeys.size()];
+			for (int j = 0; j < keySlots.length; j++) {
+				keySlots[j] = spec.indexOf(stateKeys.get(j));
+			}
+		} else {
+			this.keySlots = null;
+		}
+		if (delta) {
+			List<Integer> keyed = Lists.newArrayList();
+			List<Integer> unkeyed = Lists.newArrayList();
+			for (int j : valueSlots) {
+				if (Ints.contains(keySlots, j)) {
+					keyed.add(j);
+				} else {
+					unkeyed.add(j);
+				}
+			}
+			this.deltaKeySlots = Ints.toArray(keyed);
+			this.deltaSlots = Ints.toArray(unkeyed);
+			this.deltaMaskBytes = (deltaSlots.length+7)/8;
+		} else {
+			this.deltaKeySlots = null;
+			this.deltaSlots = null;
+			this.deltaMaskBytes = 0;
+		}
+		// last, since the generator reads everything above
+		FieldCodec fields = null;
+		if (generate) {
+			try {
+				fields = CodecGenerator.generate(this);
+			} catch (NoClassDefFoundError e) {
+				// ASM isn't on the classpath
+			}
+		}
+		this.fields = fields;
+	}
+
+	/**
+	 * @return the key of the state the given values describe, or null if
+	 * 		this packet isn't coalesced or delta encoded
+	 */
+	StateKey stateKey(Slots values) {
+		if (keySlots == null) return null;
+		Object[] key = new Object[keySlots.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = values.getBoxed(keySlots[i]);
+		}
+		return new StateKey(this, key);
+	}
+
+	/**
+	 * @return the key later sends would replace the given values by, or null
+	 * 		if this packet isn't coalesced
+	 */
+	StateKey coalesceKey(Slots values) {
+		return coalesce ? stateKey(values) : null;
+	}
+
+	/**
+	 * @return the number of bytes {@link #encode} will write for the given
+	 * 		values. exact unless the packet contains NBT or interned strings
+	 */
+	int sizeOf(Slots values) {
+		int size = fixedSize;
+		for (int i = 0; i < variableSlots.length; i++) {
+			size += sizeOf(values, variableSlots[i]);
+		}
+		return size;
+	}
+
+	private int sizeOf(Slots values, int slot) {
+		DataType type = types[slot];
+		if (!type.isVariableSize()) return type.minimumSize;
+		if (type == DataType.FIXED) {
+			return DataType.varLongSize(DataType.zigzag(Math.round(values.doubles[slot]/precisions[slot])));
+		}
+		if (type.storage == DataType.Storage.REFERENCE) {
+			return type.sizeOf(values.objects[slot]);
+		}
+		return type.sizeOf(values.longs[slot]);
+	}
+
+	void encode(Slots values, ByteBuf buf) {
+		encode(values, buf, MODE_STANDALONE, null);
+	}
+
+	/**
+	 * @param mode for delta encoded packets, whether the receiver should
+	 * 		keep this packet as its baseline; {@link #MODE_STANDALONE} or
+	 * 		{@link #MODE_FULL}
+	 * @param strings the connection's dictionary for interned strings, or
+	 * 		null to send them inline
+	 */
+	void encode(Slots values, ByteBuf buf, int mode, StringDictionary strings) {
+		WireFormat.writeVarInt(buf, discriminator, 5);
+		if (delta) {
+			buf.writeByte(mode);
+		}
+		writeBitfield(values, buf);
+		if (fields != null) {
+			fields.write(values, buf, strings);
+			return;
+		}
+		for (int i = 0; i < valueSlots.length; i++) {
+			writeSlot(values, valueSlots[i], buf, strings);
+		}
+	}
+
+	/**
+	 * @return true if any of the given values are buffers big enough to be
+	 * 		worth {@link #encodeSliced slicing} instead of copying
+	 */
+	boolean worthSlicing(Slots values) {
+		for (int i = 0; i < dataSlots.length; i++) {
+			if (sliceable(values, dataSlots[i]) != null) return true;
+		}
+		return false;
+	}
+
+	private ByteBuf sliceable(Slots values, int slot) {
+		if (types[slot] != DataType.ARBITRARY) return null;
+		Object o = values.objects[slot];
+		if (o instanceof ByteBuf && ((ByteBuf)o).readableBytes() >= SLICE_THRESHOLD) {
+			return (ByteBuf)o;
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the same bytes as {@link #encode(Slots, ByteBuf)}, but as
+	 * components of a composite buffer: large data buffers are added as
+	 * retained slices, and everything between them is written into exactly
+	 * sized parts from the given allocator.
+	 */
+	void encodeSliced(Slots values, CompositeByteBuf out, ByteBufAllocator alloc, boolean direct) {
+		int start = 0;
+		boolean first = true;
+		while (true) {
+			// measure everything up to the next big buffer, and its length
+			int size = first ? discriminatorBytes + (delta ? 1 : 0) + bitfieldBytes : 0;
+			int end = start;
+			ByteBuf sliced = null;
+			for (; end < valueSlots.length; end++) {
+				sliced = sliceable(values, valueSlots[end]);
+				if (sliced != null) {
+					size += WireFormat.varIntByteCount(sliced.readableBytes());
+					break;
+				}
+				size += sizeOf(values, valueSlots[end]);
+			}
+			if (size > 0) {
+				ByteBuf part = direct ? alloc.directBuffer(size) : alloc.heapBuffer(size);
+				try {
+					if (first) {
+						WireFormat.writeVarInt(part, discriminator, 5);
+						if (delta) {
+							part.writeByte(MODE_STANDALONE);
+						}
+						writeBitfield(values, part);
+					}
+					for (int i = start; i < end; i++) {
+						writeSlot(values, valueSlots[i], part, null);
+					}
+					if (sliced != null) {
+						WireFormat.writeVarInt(part, sliced.readableBytes(), 5);
+					}
+				} catch (RuntimeException e) {
+					part.release();
+					throw e;
+				}
+				addComponent(out, part);
+			}
+			first = false;
+			if (sliced == null) break;
+			addComponent(out, sliced.slice(sliced.readerIndex(), sliced.readableBytes()).retain());
+			start = end+1;
+		}
+	}
+
+	private static void addComponent(CompositeByteBuf out, ByteBuf component) {
+		out.addComponent(component);
+		// adding a component doesn't move the writer index
+		out.writerIndex(out.writerIndex()+component.readableBytes());
+	}
+
+	/**
+	 * @return which of the delta fields differ between the given values and
+	 * 		the baseline, as a bitmask
+	 */
+	byte[] deltaMask(Slots values, Slots baseline) {
+		byte[] mask = new byte[deltaMaskBytes];
+		for (int i = 0; i < deltaSlots.length; i++) {
+			if (!values.sameValue(deltaSlots[i], baseline)) {
+				mask[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * @return the number of bytes {@link #encodeDelta} will write for the
+	 * 		given values and mask
+	 */
+	int sizeOfDelta(Slots values, byte[] mask) {
+		int size = discriminatorBytes + 1 + bitfieldBytes + deltaMaskBytes;
+		for (int i = 0; i < deltaKeySlots.length; i++) {
+			size += sizeOf(values, deltaKeySlots[i]);
+		}
+		for (int i = 0; i < deltaSlots.length; i++) {
+			if ((mask[i >> 3] & (1 << (i & 7))) != 0) {
+				size += sizeOf(values, deltaSlots[i]);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the given values as a delta: the discriminator, the mode, the
+	 * bitfield, every key field, the mask, then the fields set in the mask.
+	 */
+	void encodeDelta(Slots values, byte[] mask, ByteBuf buf, StringDictionary strings) {
+		WireFormat.writeVarInt(buf, discriminator, 5);
+		buf.writeByte(MODE_DELTA);
+		writeBitfield(values, buf);
+		for (int i = 0; i < deltaKeySlots.length; i++) {
+			writeSlot(values, deltaKeySlots[i], buf, strings);
+		}
+		buf.writeBytes(mask);
+		for (int i = 0; i < deltaSlots.length; i++) {
+			if ((mask[i >> 3] & (1 << (i & 7))) != 0) {
+				writeSlot(values, deltaSlots[i], buf, strings);
+			}
+		}
+	}
+
+	/**
+	 * Writes the bitfield and every key field of the given values, the way a
+	 * delta starts, so a resync can say which state it's for. Strings are
+	 * always sent inline, as the dictionaries only go one way.
+	 */
+	void encodeDeltaKey(Slots values, ByteBuf buf) {
+		writeBitfield(values, buf);
+		for (int i = 0; i < deltaKeySlots.length; i++) {
+			writeSlot(values, deltaKeySlots[i], buf, null);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the given slot is bounded and the
+	 * 		value is outside of its range
+	 */
+	void checkRange(int slot, long value) {
+		if (types[slot] == DataType.QUANTIZED) {
+			checkRange(slot, (double)value);
+		} else if (types[slot].isBounded() && (value < minimums[slot] || value > maximums[slot])) {
+			throw outOfRange(slot, value);
+		}
+	}
+
+	void checkRange(int slot, double value) {
+		if (types[slot] == DataType.QUANTIZED) {
+			long steps = Math.round((value-origins[slot])/precisions[slot]);
+			if (Double.isNaN(value) || steps < 0 || steps > maximums[slot]) {
+				throw outOfRange(slot, value);
+			}
+		}
+	}
+
+	private IllegalArgumentException outOfRange(int slot, Object value) {
+		String range = types[slot] == DataType.QUANTIZED
+				? spec.getMinimum(keys[slot])+"-"+spec.getMaximum(keys[slot])
+				: minimums[slot]+"-"+maximums[slot];
+		return new IllegalArgumentException("Value "+value+" for '"+keys[slot]+"' is outside of its range "+range+" in packet '"+spec.getIdentifier()+"'");
+	}
+
+	/**
+	 * @return the value of the given packed field as a number of steps
+	 * 		above its minimum
+	 */
+	private long packedSteps(Slots values, int slot) {
+		if (types[slot] == DataType.QUANTIZED) {
+			double value = values.doubles[slot];
+			checkRange(slot, value);
+			return Math.round((value-origins[slot])/precisions[slot]);
+		}
+		long value = values.longs[slot];
+		checkRange(slot, value);
+		return value-minimums[slot];
+	}
+
+	/**
+	 * Writes the booleans, then the bounded and enum fields, as one stream
+	 * of bits, lowest bit first.
+	 */
+	private void writeBitfield(Slots values, ByteBuf buf) {
+		long acc = 0;
+		int count = 0;
+		for (int i = 0; i < booleanSlots.length; i++) {
+			if (values.getBoolean(booleanSlots[i])) {
+				acc |= 1L << count;
+			}
+			if (++count == 8) {
+				buf.writeByte((int)acc);
+				acc = 0;
+				count = 0;
+			}
+		}
+		for (int i = 0; i < packedSlots.length; i++) {
+			int slot = packedSlots[i];
+			// at most 7 bits are left over, so even 32 bits of range fit
+			acc |= packedSteps(values, slot) << count;
+			count += bits[slot];
+			while (count >= 8) {
+				buf.writeByte((int)acc);
+				acc >>>= 8;
+				count -= 8;
+			}
+		}
+		if (count > 0) {
+			buf.writeByte((int)acc);
+		}
+	}
+
+	private void writeSlot(Slots values, int slot, ByteBuf buf, StringDictionary strings) {
+		DataType type = types[slot];
+		if (type == DataType.INTERNED_STRING) {
+			StringDictionary.write(buf, (String)values.objects[slot], strings);
+			return;
+		}
+		if (type == DataType.FIXED) {
+			DataType.writeVarLong(buf, DataType.zigzag(Math.round(values.doubles[slot]/precisions[slot])));
+			return;
+		}
+		switch (type.storage) {
+			case LONG:
+				type.longWriter.accept(buf, values.longs[slot]);
+				break;
+			case DOUBLE:
+				type.doubleWriter.accept(buf, values.doubles[slot]);
+				break;
+			default:
+				type.writer.accept(buf, values.objects[slot]);
+				break;
+		}
+	}
+
+	/**
+	 * Decodes everything after the discriminator into the given slots. For
+	 * delta encoded packets, the mode must already have been read and must
+	 * not be {@link #MODE_DELTA}.
+	 * 
+	 * @param strings the connection's dictionary for interned strings, or
+	 * 		null if only inline strings are expected
+	 */
+	void decode(ByteBuf buf, Slots values, StringDictionary strings) {
+		readBitfield(buf, values);
+		if (fields != null) {
+			fields.read(buf, values, strings);
+		} else {
+			for (int i = 0; i < valueSlots.length; i++) {
+				readSlot(buf, values, valueSlots[i], strings);
+			}
+		}
+		values.markAllPresent();
+	}
+
+	/**
+	 * Decodes the bitfield and key fields of a delta, which is enough to
+	 * find its baseline with {@link #stateKey}.
+	 */
+	void decodeDeltaKey(ByteBuf buf, Slots values, StringDictionary strings) {
+		readBitfield(buf, values);
+		for (int i = 0; i < deltaKeySlots.length; i++) {
+			readSlot(buf, values, deltaKeySlots[i], strings);
+		}
+	}
+
+	/**
+	 * Decodes the rest of a delta, taking every field it left out from the
+	 * baseline. Without a baseline, the fields it did send are still read,
+	 * so that any interned strings it defines aren't missed, but the values
+	 * are incomplete.
+	 */
+	void decodeDelta(ByteBuf buf, Slots values, Slots baseline, StringDictionary strings) {
+		byte[] mask = new byte[deltaMaskBytes];
+		buf.readBytes(mask);
+		for (int i = 0; i < deltaSlots.length; i++) {
+			int slot = deltaSlots[i];
+			if ((mask[i >> 3] & (1 << (i & 7))) != 0) {
+				readSlot(buf, values, slot, strings);
+			} else if (baseline != null) {
+				values.copyFrom(slot, baseline);
+			}
+		}
+		if (baseline != null) {
+			values.markAllPresent();
+		}
+	}
+
+	private void readBitfield(ByteBuf buf, Slots values) {
+		long acc = 0;
+		int count = 0;
+		for (int i = 0; i < booleanSlots.length; i++) {
+			if (count == 0) {
+				acc = buf.readUnsignedByte();
+				count = 8;
+			}
+			values.longs[booleanSlots[i]] = acc & 1;
+			acc >>>= 1;
+			count--;
+		}
+		for (int i = 0; i < packedSlots.length; i++) {
+			int slot = packedSlots[i];
+			int width = bits[slot];
+			while (count < width) {
+				acc |= (long)buf.readUnsignedByte() << count;
+				count += 8;
+			}
+			long steps = acc & ((1L << width)-1);
+			acc >>>= width;
+			count -= width;
+			if (steps > maximums[slot]-minimums[slot]) {
+				throw outOfRange(slot, types[slot] == DataType.QUANTIZED ? (Object)(origins[slot]+steps*precisions[slot]) : (Object)(minimums[slot]+steps));
+			}
+			if (types[slot] == DataType.QUANTIZED) {
+				values.doubles[slot] = origins[slot]+steps*precisions[slot];
+			} else {
+				values.longs[slot] = minimums[slot]+steps;
+			}
+		}
+	}
+
+	private void readSlot(ByteBuf buf, Slots values, int slot, StringDictionary strings) {
+		DataType type = types[slot];
+		if (type == DataType.INTERNED_STRING) {
+			values.objects[slot] = StringDictionary.read(buf, strings);
+			return;
+		}
+		if (type == DataType.ARBITRARY) {
+			// left as a slice of the payload; tokens copy it out on demand
+			values.objects[slot] = buf.readSlice(WireFormat.readVarInt(buf, 5));
+			return;
+		}
+		if (type == DataType.FIXED) {
+			values.doubles[slot] = DataType.unzigzag(DataType.readVarLong(buf))*precisions[slot];
+			return;
+		}
+		switch (type.storage) {
+			case LONG:
+				values.longs[slot] = type.longReader.applyAsLong(buf);
+				break;
+			case DOUBLE:
+				values.doubles[slot] = type.doubleReader.applyAsDouble(buf);
+				break;
+			default:
+				values.objects[slot] = type.reader.apply(buf);
+				break;
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * Counts and timings for one packet on one channel, from
+ * {@link LambdaChannel#getMetrics(String)}. Recorded on whichever thread
+ * does the work, without locking, so the numbers read while packets are
+ * flowing are a close approximation rather than a consistent snapshot.
+ * <p>
+ * Byte counts are of the packet's own payload, before bundling,
+ * compression or fragmentation, so they say which packets are worth
+ * slimming down rather than what went over the wire. Times are in
+ * nanoseconds.
+ */
+public final class PacketMetrics {
+	private final StripedCounter sent = new StripedCounter();
+	private final StripedCounter bytesSent = new StripedCounter();
+	private final StripedCounter received = new StripedCounter();
+	private final StripedCounter bytesReceived = new StripedCounter();
+	
+	private final Histogram recipients = new Histogram();
+	private final Histogram encodeTime = new Histogram();
+	private final Histogram decodeTime = new Histogram();
+	private final Histogram handlerTime = new Histogram();
+	private final Histogram queueTime = new Histogram();
+	
+	PacketMetrics() {}
+	
+	void recordSent(int bytes) {
+		sent.increment();
+		bytesSent.add(bytes);
+	}
+	
+	void recordReceived(int bytes) {
+		received.increment();
+		bytesReceived.add(bytes);
+	}
+	
+	/**
+	 * @return how many times this packet has been sent, counting every
+	 * 		recipient separately
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+	
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	public long getReceived() {
+		return received.get();
+	}
+	
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	
+	/**
+	 * @return how many players each call to one of the send methods reached.
+	 * 		{@link PreparedPacket#toAllWatching(net.minecraft.entity.Entity)}
+	 * 		goes through vanilla's entity tracker, so it isn't counted
+	 */
+	public Histogram getRecipients() {
+		return recipients;
+	}
+	
+	/**
+	 * @return how long encoding this packet took, once per payload encoded
+	 */
+	public Histogram getEncodeTime() {
+		return encodeTime;
+	}
+	
+	/**
+	 * @return how long decoding this packet took
+	 */
+	public Histogram getDecodeTime() {
+		return decodeTime;
+	}
+	
+	/**
+	 * @return how long this packet's handler took, on whichever thread it
+	 * 		runs on
+	 */
+	public Histogram getHandlerTime() {
+		return handlerTime;
+	}
+	
+	/**
+	 * @return how long this packet waited between being received and its
+	 * 		handler starting, for packets handled on the main thread or an
+	 * 		executor
+	 */
+	public Histogram getQueueTime() {
+		return queueTime;
+	}
+	
+	/**
+	 * Starts counting from zero again.
+	 */
+	public void reset() {
+		sent.reset();
+		bytesSent.reset();
+		received.reset();
+		bytesReceived.reset();
+		recipients.reset();
+		encodeTime.reset();
+		decodeTime.reset();
+		handlerTime.reset();
+		queueTime.reset();
+	}
+
+}
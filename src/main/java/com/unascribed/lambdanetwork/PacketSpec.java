@@ -2,6 +2,7 @@ package com.unascribed.lambdanetwork;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.EnumMultiset;
@@ -12,18 +13,29 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 
-import net.minecraft.client.Minecraft;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.server.MinecraftServer;
 import net.minecraftforge.fml.relauncher.Side;
-import net.minecraftforge.fml.relauncher.SideOnly;
 
 public final class PacketSpec {
 	private final LambdaNetworkBuilder parent;
+	/** the mutable spec this was cloned from, or itself; what field handles belong to */
+	private final PacketSpec origin;
 	private final String identifier;
 	private final Map<String, DataType> data;
+	private final Map<String, Integer> indices;
 	private final Multiset<DataType> types;
 	private final List<String> booleanKeys;
+	private final Map<String, double[]> bounds;
+	private final Map<String, Double> precisions;
+	private final Map<String, Class<? extends Enum<?>>> enumTypes;
+	private List<String> coalesceKeys = null;
+	private List<String> deltaKeys = null;
+	private boolean streamed = false;
+	private int frequencyHint = 0;
+	private double rateLimit = 0;
+	private int burst = 0;
+	private int maxQueued = 0;
+	private LimitAction limitAction = LimitAction.DROP;
 	
 	/*
 	 * if we wanted to be obsessive about immutability, we could have separate
@@ -32,25 +44,51 @@ public final class PacketSpec {
 	 * it's a pointless endeavour.
 	 */
 	private BiConsumer<EntityPlayer, Token> consumer;
+	private boolean mainThread = false;
+	private Executor executor = null;
+	private BiFunction<EntityPlayer, Token, Object> asyncFunction = null;
+	private BiConsumer<EntityPlayer, Object> resultHandler = null;
 	private Side side = null;
 	private int minimumSize = 1; // discriminator is 1 byte
 	
 	private PacketSpec(LambdaNetworkBuilder parent, String identifier) {
 		this.data = Maps.newLinkedHashMap();
+		this.indices = Maps.newHashMap();
 		this.types = EnumMultiset.create(DataType.class);
 		this.parent = parent;
+		this.origin = this;
 		this.identifier = identifier;
 		this.booleanKeys = Lists.newArrayList();
+		this.bounds = Maps.newHashMap();
+		this.precisions = Maps.newHashMap();
+		this.enumTypes = Maps.newHashMap();
 	}
 	
 	private PacketSpec(PacketSpec in) {
 		this.data = ImmutableMap.copyOf(in.data);
+		this.indices = ImmutableMap.copyOf(in.indices);
 		this.types = ImmutableMultiset.copyOf(in.types);
 		this.parent = null; // parent is only needed for mutable versions
+		this.origin = in.origin;
 		this.identifier = in.identifier;
 		this.consumer = in.consumer;
+		this.mainThread = in.mainThread;
+		this.executor = in.executor;
+		this.asyncFunction = in.asyncFunction;
+		this.resultHandler = in.resultHandler;
 		this.side = in.side;
 		this.booleanKeys = ImmutableList.copyOf(in.booleanKeys);
+		this.bounds = ImmutableMap.copyOf(in.bounds);
+		this.precisions = ImmutableMap.copyOf(in.precisions);
+		this.enumTypes = ImmutableMap.copyOf(in.enumTypes);
+		this.coalesceKeys = in.coalesceKeys == null ? null : ImmutableList.copyOf(in.coalesceKeys);
+		this.deltaKeys = in.deltaKeys == null ? null : ImmutableList.copyOf(in.deltaKeys);
+		this.streamed = in.streamed;
+		this.frequencyHint = in.frequencyHint;
+		this.rateLimit = in.rateLimit;
+		this.burst = in.burst;
+		this.maxQueued = in.maxQueued;
+		this.limitAction = in.limitAction;
 		this.minimumSize = in.minimumSize;
 	}
 	
@@ -69,10 +107,59 @@ public final class PacketSpec {
 		return data.get(key);
 	}
 	
+	/**
+	 * @return the position of the given key in this packet's declaration
+	 * 		order, which doubles as its slot index in pending packets and
+	 * 		tokens
+	 */
+	public int indexOf(String key) {
+		Integer idx = indices.get(key);
+		if (idx == null) {
+			throw new IllegalArgumentException("No such data '"+key+"'");
+		}
+		return idx;
+	}
+	
+	PacketSpec getOrigin() {
+		return origin;
+	}
+	
 	public BiConsumer<EntityPlayer, Token> getConsumer() {
 		return consumer;
 	}
 	
+	/**
+	 * @return true if the {@link #getConsumer() consumer} has to be run on the
+	 * 		main thread instead of the network thread
+	 */
+	public boolean isHandledOnMainThread() {
+		return mainThread;
+	}
+	
+	/**
+	 * @return the executor the {@link #getConsumer() consumer} runs on, or
+	 * 		null if it isn't handled asynchronously
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * @return the asynchronous half of a handler whose result is posted back
+	 * 		to the main thread, or null if there's no result to post
+	 */
+	public BiFunction<EntityPlayer, Token, Object> getAsyncFunction() {
+		return asyncFunction;
+	}
+	
+	/**
+	 * @return the main thread half of a handler whose result is posted back
+	 * 		to the main thread, or null if there's no result to post
+	 */
+	public BiConsumer<EntityPlayer, Object> getResultHandler() {
+		return resultHandler;
+	}
+	
 	public int getAmountOfType(DataType type) {
 		return types.count(type);
 	}
@@ -81,6 +168,115 @@ public final class PacketSpec {
 		return booleanKeys;
 	}
 	
+	/**
+	 * @return the smallest value allowed for the given {@link DataType#BOUNDED
+	 * 		BOUNDED}, {@link DataType#ENUM ENUM} or {@link DataType#QUANTIZED
+	 * 		QUANTIZED} data
+	 */
+	public double getMinimum(String key) {
+		return getBounds(key)[0];
+	}
+	
+	/**
+	 * @return the largest value allowed for the given {@link DataType#BOUNDED
+	 * 		BOUNDED}, {@link DataType#ENUM ENUM} or {@link DataType#QUANTIZED
+	 * 		QUANTIZED} data
+	 */
+	public double getMaximum(String key) {
+		return getBounds(key)[1];
+	}
+	
+	private double[] getBounds(String key) {
+		double[] b = bounds.get(key);
+		if (b == null) {
+			throw new IllegalArgumentException("No bounded data '"+key+"'");
+		}
+		return b;
+	}
+	
+	/**
+	 * @return the step size of the given {@link DataType#FIXED FIXED} or
+	 * 		{@link DataType#QUANTIZED QUANTIZED} data
+	 */
+	public double getPrecision(String key) {
+		Double precision = precisions.get(key);
+		if (precision == null) {
+			throw new IllegalArgumentException("No fixed-point data '"+key+"'");
+		}
+		return precision;
+	}
+	
+	/**
+	 * @return the enum the given {@link DataType#ENUM ENUM} data holds
+	 * 		constants of
+	 */
+	public Class<? extends Enum<?>> getEnumType(String key) {
+		Class<? extends Enum<?>> clazz = enumTypes.get(key);
+		if (clazz == null) {
+			throw new IllegalArgumentException("No enum data '"+key+"'");
+		}
+		return clazz;
+	}
+	
+	/**
+	 * @return the keys that identify which earlier sends of this packet a
+	 * 		new send replaces, or null if this packet isn't coalesced
+	 */
+	public List<String> getCoalesceKeys() {
+		return coalesceKeys;
+	}
+	
+	/**
+	 * @return the keys that identify which baseline a send of this packet is
+	 * 		delta encoded against, or null if this packet isn't delta encoded
+	 */
+	public List<String> getDeltaKeys() {
+		return deltaKeys;
+	}
+	
+	public boolean isStreamed() {
+		return streamed;
+	}
+	
+	public int getFrequencyHint() {
+		return frequencyHint;
+	}
+	
+	/**
+	 * @return how many of this packet each player may send per second, or 0
+	 * 		if there's no limit
+	 */
+	public double getRateLimit() {
+		return rateLimit;
+	}
+	
+	/**
+	 * @return how many of this packet each player may send at once before
+	 * 		the {@link #getRateLimit() rate limit} kicks in
+	 */
+	public int getBurst() {
+		return burst;
+	}
+	
+	/**
+	 * @return how many of this packet from each player may be waiting to be
+	 * 		handled at once, or 0 if there's no limit
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	
+	public LimitAction getLimitAction() {
+		return limitAction;
+	}
+	
+	/**
+	 * @return true if this packet has a rate or queue limit
+	 */
+	public boolean isLimited() {
+		return rateLimit > 0 || maxQueued > 0;
+	}
+	
 	public Map<String, DataType> getData() {
 		return data;
 	}
@@ -101,8 +297,150 @@ public final class PacketSpec {
 	
 	public PacketSpec with(DataType type, String name) {
 		if (parent == null) illegalStateImmutableClone();
+		if (type != null && type.isParameterized())
+			illegalArgument("needs a range, precision or enum class for "+type+" data '"+name+"'");
+		return add(type, name);
+	}
+	
+	/**
+	 * Declares {@link DataType#BOUNDED BOUNDED} data, an integer that's always
+	 * between the given minimum and maximum. It's packed into the bitfield
+	 * along with the booleans, using only as many bits as the range needs,
+	 * so a 0-15 value takes up 4 bits. Sending a value outside of the range
+	 * is an error.
+	 */
+	public PacketSpec with(int minimum, int maximum, String name) {
+		if (parent == null) illegalStateImmutableClone();
+		if (maximum < minimum)
+			illegalArgument("has a range for '"+name+"' that ends before it starts");
+		add(DataType.BOUNDED, name);
+		bounds.put(name, new double[] { minimum, maximum });
+		return this;
+	}
+	
+	/**
+	 * Declares {@link DataType#FIXED FIXED} data, a number that's sent as a
+	 * whole multiple of the given precision. Values are rounded to the
+	 * nearest multiple, so a precision of 1/32D keeps positions as exact as
+	 * vanilla's entity packets do. Small values take up less space.
+	 */
+	public PacketSpec with(double precision, String name) {
+		if (parent == null) illegalStateImmutableClone();
+		checkPrecision(precision, name);
+		add(DataType.FIXED, name);
+		precisions.put(name, precision);
+		return this;
+	}
+	
+	/**
+	 * Declares {@link DataType#QUANTIZED QUANTIZED} data, a number between the
+	 * given minimum and maximum that's sent as a whole multiple of the given
+	 * precision above the minimum. It's packed into the bitfield like
+	 * {@link #with(int, int, String) BOUNDED} data, so a 0-1 value with a
+	 * precision of 1/1000D takes up 10 bits. Sending a value outside of the
+	 * range is an error.
+	 */
+	public PacketSpec with(double minimum, double maximum, double precision, String name) {
+		if (parent == null) illegalStateImmutableClone();
+		checkPrecision(precision, name);
+		if (!(maximum >= minimum) || Double.isInfinite(maximum-minimum))
+			illegalArgument("has an invalid range for '"+name+"'");
+		if ((maximum-minimum)/precision > 0xFFFFFFFFL)
+			illegalArgument("has too fine a precision for the range of '"+name+"'");
+		add(DataType.QUANTIZED, name);
+		bounds.put(name, new double[] { minimum, maximum });
+		precisions.put(name, precision);
+		return this;
+	}
+	
+	private void checkPrecision(double precision, String name) {
+		if (!(precision > 0) || Double.isInfinite(precision))
+			illegalArgument("has an invalid precision for '"+name+"'");
+	}
+	
+	/**
+	 * Declares {@link DataType#ENUM ENUM} data, a constant of the given enum.
+	 * It's sent by ordinal in as few bits as the enum needs, packed into the
+	 * bitfield like {@link #with(int, int, String) BOUNDED} data.
+	 */
+	public PacketSpec with(Class<? extends Enum<?>> enumType, String name) {
+		if (parent == null) illegalStateImmutableClone();
+		checkNull(enumType, "can't have a null enum class for '"+name+"'");
+		int count = enumType.getEnumConstants().length;
+		if (count == 0)
+			illegalArgument("can't use "+enumType.getName()+" for '"+name+"', since it has no constants");
+		add(DataType.ENUM, name);
+		bounds.put(name, new double[] { 0, count-1 });
+		enumTypes.put(name, enumType);
+		return this;
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given data as an int,
+	 * 		without looking it up by name each time
+	 * @throws IllegalArgumentException if there's no such data, or it
+	 * 		can't hold integers
+	 */
+	public IntField intField(String name) {
+		checkField(name, getType(name).isValidForInteger(), "an int");
+		return new IntField(this, name);
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given data as a long
+	 * @see #intField(String)
+	 */
+	public LongField longField(String name) {
+		checkField(name, getType(name).isValidForInteger(), "a long");
+		return new LongField(this, name);
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given data as a float
+	 * @see #intField(String)
+	 */
+	public FloatField floatField(String name) {
+		checkField(name, getType(name).isValidForFloating(), "a float");
+		return new FloatField(this, name);
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given data as a double
+	 * @see #intField(String)
+	 */
+	public DoubleField doubleField(String name) {
+		checkField(name, getType(name).isValidForFloating(), "a double");
+		return new DoubleField(this, name);
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given boolean data
+	 * @see #intField(String)
+	 */
+	public BoolField boolField(String name) {
+		checkField(name, getType(name).isValidForBoolean(), "a boolean");
+		return new BoolField(this, name);
+	}
+	
+	/**
+	 * @return a handle for setting and getting the given string data
+	 * @see #intField(String)
+	 */
+	public StringField stringField(String name) {
+		checkField(name, getType(name).isValidForString(), "a String");
+		return new StringField(this, name);
+	}
+	
+	private void checkField(String name, boolean valid, String type) {
+		if (!valid) {
+			throw new IllegalArgumentException("Packet '"+identifier+"' can't have "+type+" handle for "+data.get(name)+" data '"+name+"'");
+		}
+	}
+	
+	private PacketSpec add(DataType type, String name) {
 		if (data.containsKey(name))
 			illegalArgument("defined multiple data entries with the same name");
+		indices.put(name, data.size());
 		data.put(name, type);
 		types.add(type);
 		if (type == DataType.BOOLEAN) {
@@ -112,6 +450,142 @@ public final class PacketSpec {
 		return this;
 	}
 	
+	/**
+	 * Marks this packet as a "current state" update, where only the newest
+	 * value matters. Sends from the server are held until the end of the
+	 * tick, and if the same player is sent this packet again with equal
+	 * values for all of the given keys in the meantime, the new send replaces
+	 * the old one instead of both going out. With no keys, every send of this
+	 * packet to a player replaces the last.
+	 * 
+	 * @param keys the data entries that identify what this packet is the
+	 * 		state of, such as a block position. must already be declared
+	 */
+	public PacketSpec coalescedBy(String... keys) {
+		if (parent == null) illegalStateImmutableClone();
+		if (deltaKeys != null)
+			illegalArgument("can't be both coalesced and delta encoded");
+		for (String key : keys) {
+			if (!data.containsKey(key))
+				illegalArgument("can't be coalesced by undeclared data '"+key+"'");
+		}
+		this.coalesceKeys = Lists.newArrayList(keys);
+		return this;
+	}
+	
+	/**
+	 * Makes this packet only send the data entries that changed since the
+	 * last time it was sent over the same connection with equal values for
+	 * all of the given keys. The key entries and everything in the bitfield,
+	 * such as booleans, are always sent, everything else is only sent if it
+	 * changed. The receiving side fills in the rest from the last packet it
+	 * received, so handlers still see every value. Useful for sync packets
+	 * that are sent often but mostly repeat themselves.
+	 * <p>
+	 * Delta encoded packets can't also be {@link #coalescedBy coalesced},
+	 * since a replaced send would leave the two sides disagreeing on what
+	 * was last sent.
+	 * 
+	 * @param keys the data entries that identify what this packet is the
+	 * 		state of, such as an entity id. must already be declared
+	 */
+	public PacketSpec deltaEncodedBy(String... keys) {
+		if (parent == null) illegalStateImmutableClone();
+		if (coalesceKeys != null)
+			illegalArgument("can't be both coalesced and delta encoded");
+		if (streamed)
+			illegalArgument("can't be both streamed and delta encoded");
+		for (String key : keys) {
+			if (!data.containsKey(key))
+				illegalArgument("can't be delta encoded by undeclared data '"+key+"'");
+		}
+		this.deltaKeys = Lists.newArrayList(keys);
+		return this;
+	}
+	
+	/**
+	 * Marks this packet as one that can carry large {@link DataType#ARBITRARY}
+	 * or {@link DataType#NBT_COMPOUND} data, such as schematics or images.
+	 * When one of these is sent from the server and is too big for a single
+	 * fragment, it's split up and trickled out over the following ticks,
+	 * within the channel's {@link LambdaNetworkBuilder#streamingBudget
+	 * per-player budget}, instead of going out all at once and holding up
+	 * everything behind it. The handler runs once the whole packet has
+	 * arrived, which means packets sent after it can arrive first. For the
+	 * same reason, streamed packets can't be
+	 * {@link #deltaEncodedBy delta encoded}.
+	 */
+	public PacketSpec streamed() {
+		if (parent == null) illegalStateImmutableClone();
+		if (types.count(DataType.ARBITRARY) == 0 && types.count(DataType.NBT_COMPOUND) == 0)
+			illegalArgument("can't be streamed without any ARBITRARY or NBT_COMPOUND data");
+		if (deltaKeys != null)
+			illegalArgument("can't be both streamed and delta encoded");
+		this.streamed = true;
+		return this;
+	}
+	
+	/**
+	 * Hints how often this packet is sent compared to the others on its
+	 * channel. Packets with higher hints get lower ids, and the first 123
+	 * ids on a channel take up one byte where later ones take two, so this
+	 * only matters for channels with a lot of packets. Packets without a
+	 * hint count as 0, and ties go to whichever was declared first.
+	 */
+	public PacketSpec frequencyHint(int hint) {
+		if (parent == null) illegalStateImmutableClone();
+		this.frequencyHint = hint;
+		return this;
+	}
+	
+	/**
+	 * Limits how often each player can send this packet, with a token bucket
+	 * that holds up to {@code burst} packets and refills at
+	 * {@code perSecond}. Checked before the packet is decoded, so a client
+	 * spamming it costs the server as little as possible, unless it's
+	 * {@link #deltaEncodedBy delta encoded} or has interned strings; those are
+	 * decoded first to keep the connection's baselines and dictionary in
+	 * step with the client's. What happens to
+	 * packets over the limit is set by {@link #whenLimited}. Only packets
+	 * bound to the server can be limited.
+	 */
+	public PacketSpec rateLimited(double perSecond, int burst) {
+		if (parent == null) illegalStateImmutableClone();
+		if (!(perSecond > 0))
+			illegalArgument("can't have a rate limit of "+perSecond+" per second");
+		if (burst < 1)
+			illegalArgument("can't have a burst size of "+burst);
+		this.rateLimit = perSecond;
+		this.burst = burst;
+		return this;
+	}
+	
+	/**
+	 * Limits how many of this packet from each player can be waiting for
+	 * the main thread or an {@link #handledAsyncBy executor} at once, so a
+	 * handler that falls behind can't build up an unbounded backlog. What
+	 * happens to packets over the limit is set by {@link #whenLimited}.
+	 */
+	public PacketSpec maxQueued(int max) {
+		if (parent == null) illegalStateImmutableClone();
+		if (max < 1)
+			illegalArgument("can't have a queue limit of "+max);
+		this.maxQueued = max;
+		return this;
+	}
+	
+	/**
+	 * Sets what happens to packets that go over this packet's
+	 * {@link #rateLimited rate} or {@link #maxQueued queue} limit. Defaults
+	 * to {@link LimitAction#DROP}.
+	 */
+	public PacketSpec whenLimited(LimitAction action) {
+		if (parent == null) illegalStateImmutableClone();
+		checkNull(action, "can't have a null limit action");
+		this.limitAction = action;
+		return this;
+	}
+	
 	/**
 	 * Sets which side this packet is "bound" to. This is the side on which
 	 * the handler will be run.
@@ -133,35 +607,60 @@ public final class PacketSpec {
 		if (parent == null) illegalStateImmutableClone();
 		checkNull(side, "isn't bound to any side");
 		checkNull(consumer, "can't have a null handler");
+		if (isLimited() && side != Side.SERVER)
+			illegalArgument("can't be limited unless it's bound to the server");
+		if (maxQueued > 0 && !mainThread && executor == null)
+			illegalArgument("can't have a queue limit without a main thread or async handler");
 		this.consumer = consumer;
 		parent.addPacket(this);
 		return parent;
 	}
 	
+	/**
+	 * Sets the handler for this packet, to be run on the main thread of the
+	 * side it's bound to. Received packets are queued and handled in a batch
+	 * at the start of the next tick, within the channel's
+	 * {@link LambdaNetworkBuilder#mainThreadBudget budget}.
+	 */
 	public LambdaNetworkBuilder handledOnMainThreadBy(BiConsumer<EntityPlayer, Token> consumer) {
-		handledBy((e, t) -> {
-			if (side.isClient()) {
-				doOnMainThreadClient(e, t, consumer);
-			} else {
-				doOnMainThreadServer(e, t, consumer);
-			}
-		});
-		return parent;
+		if (parent == null) illegalStateImmutableClone();
+		this.mainThread = true;
+		return handledBy(consumer);
 	}
-	
-	@SideOnly(Side.CLIENT)
-	private static void doOnMainThreadClient(EntityPlayer e, Token t, BiConsumer<EntityPlayer, Token> consumer) {
-		Minecraft.getMinecraft().addScheduledTask(() -> {
-			consumer.accept(e, t);
-		});
+
+	/**
+	 * Sets the handler for this packet, to be run on the given executor.
+	 * Packets from the same player are handled one at a time in the order
+	 * they arrived; packets from different players are handled in parallel,
+	 * as far as the executor allows. The handler must be thread safe, and
+	 * must not touch the world.
+	 * <p>
+	 * Ordering is kept per executor, so packets that need to be handled in
+	 * order relative to each other should share one.
+	 */
+	public LambdaNetworkBuilder handledAsyncBy(Executor executor, BiConsumer<EntityPlayer, Token> consumer) {
+		if (parent == null) illegalStateImmutableClone();
+		checkNull(executor, "can't have a null executor");
+		this.executor = executor;
+		return handledBy(consumer);
 	}
 	
-	private static void doOnMainThreadServer(EntityPlayer e, Token t, BiConsumer<EntityPlayer, Token> consumer) {
-		MinecraftServer.getServer().addScheduledTask(() -> {
-			consumer.accept(e, t);
-		});
+	/**
+	 * Like {@link #handledAsyncBy(Executor, BiConsumer)}, but whatever the
+	 * handler returns is then passed to {@code then} on the main thread, as
+	 * if it had been {@link #handledOnMainThreadBy handled there}. Results
+	 * for the same player are posted in the order their packets arrived.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> LambdaNetworkBuilder handledAsyncBy(Executor executor, BiFunction<EntityPlayer, Token, R> handler, BiConsumer<EntityPlayer, R> then) {
+		if (parent == null) illegalStateImmutableClone();
+		checkNull(handler, "can't have a null handler");
+		checkNull(then, "can't have a null result handler");
+		this.asyncFunction = (BiFunction<EntityPlayer, Token, Object>)handler;
+		this.resultHandler = (BiConsumer<EntityPlayer, Object>)then;
+		return handledAsyncBy(executor, (e, t) -> handler.apply(e, t));
 	}
-
+	
 	private void illegalStateImmutableClone() {
 		throw new IllegalStateException("Cannot use builder methods on an immutable clone");
 	}
@@ -1,29 +1,24 @@
 package com.unascribed.lambdanetwork;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
-import com.google.common.base.Predicates;
-import com.google.common.base.Throwables;
-import com.google.common.collect.Maps;
-
-import net.minecraft.client.Minecraft;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.network.Packet;
 import net.minecraft.network.play.INetHandlerPlayClient;
 import net.minecraft.network.play.INetHandlerPlayServer;
-import net.minecraft.server.MinecraftServer;
 import net.minecraft.tileentity.TileEntity;
 import net.minecraft.util.BlockPos;
 import net.minecraft.util.Vec3;
 import net.minecraft.util.Vec3i;
 import net.minecraft.world.World;
-import net.minecraft.world.WorldServer;
-import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.fml.relauncher.Side;
 import net.minecraftforge.fml.relauncher.SideOnly;
 
@@ -34,9 +29,11 @@ public class PendingPacket {
 	
 	private PacketSpec packet;
 	
+	private PacketCodec codec;
+	
 	private String packetId;
 	
-	private Map<String, Object> data = Maps.newHashMap();
+	private Slots values;
 	
 	public PendingPacket(LambdaNetwork owner) {
 		this.owner = owner;
@@ -45,111 +42,336 @@ public class PendingPacket {
 		}
 	}
 	
+	/**
+	 * Creates a packet to be written to a {@link LambdaPipelineCodec}. It
+	 * has no network or channel, so only {@link #with with} can be used on
+	 * it; the rest throw IllegalStateException.
+	 */
+	PendingPacket(PacketCodec codec) {
+		this.packetId = codec.spec.getIdentifier();
+		setCodec(codec);
+	}
+	
 	public PacketSpec getPacket() {
 		return packet;
 	}
 	
+	/**
+	 * @return a snapshot of the data that has been set so far, by key
+	 */
 	public Map<String, ?> getData() {
-		return data;
+		if (values == null) {
+			return Collections.emptyMap();
+		}
+		return values.toMap();
+	}
+	
+	LambdaChannel getChannel() {
+		return channel;
+	}
+	
+	PacketCodec getCodec() {
+		return codec;
+	}
+	
+	Slots getValues() {
+		return values;
 	}
 	
 	
 	
 	public PendingPacket packet(String packet) {
+		checkNotPipeline();
 		if (channel != null) {
-			this.packet = channel.getPacketSpec(packet);
+			setCodec(channel.getCodec(packet));
 		}
 		this.packetId = packet;
 		return this;
 	}
 	
 	public PendingPacket onChannel(String channel) {
+		checkNotPipeline();
 		this.channel = owner.getChannel(channel);
 		if (packetId != null) {
-			this.packet = this.channel.getPacketSpec(packetId);
+			setCodec(this.channel.getCodec(packetId));
 		}
 		return this;
 	}
 	
+	private void checkNotPipeline() {
+		if (owner == null) {
+			throw new IllegalStateException("Packet '"+packetId+"' belongs to a pipeline codec, and can only be written to its pipeline");
+		}
+	}
+	
+	private void setCodec(PacketCodec codec) {
+		this.codec = codec;
+		this.packet = codec.spec;
+		this.values = new Slots(codec);
+	}
+	
 	
 	public PendingPacket with(String key, int value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForInteger()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForInteger()) {
 			invalidType(key, "int");
 		}
-		data.put(key, value);
+		codec.checkRange(idx, value);
+		values.setLong(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, long value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForInteger()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForInteger()) {
 			invalidType(key, "long");
 		}
-		data.put(key, value);
+		codec.checkRange(idx, value);
+		values.setLong(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, boolean value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForBoolean()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForBoolean()) {
 			invalidType(key, "boolean");
 		}
-		data.put(key, value);
+		values.setBoolean(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, Enum<?> value) {
+		int idx = slot(key);
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for enum value");
+		}
+		if (!codec.types[idx].isValidForEnum() || packet.getEnumType(key) != value.getDeclaringClass()) {
+			invalidType(key, value.getDeclaringClass().getName());
+		}
+		values.setLong(idx, value.ordinal());
 		return this;
 	}
 	
 	public PendingPacket with(String key, float value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForFloating()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForFloating()) {
 			invalidType(key, "float");
 		}
-		data.put(key, value);
+		codec.checkRange(idx, value);
+		values.setDouble(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, double value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForFloating()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForFloating()) {
 			invalidType(key, "double");
 		}
-		data.put(key, value);
+		codec.checkRange(idx, value);
+		values.setDouble(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, String value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForString()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForString()) {
 			invalidType(key, "String");
 		}
 		if (value == null) {
 			throw new IllegalArgumentException("Cannot use null for String value");
 		}
-		data.put(key, value);
+		values.setObject(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, NBTTagCompound value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForNBT()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForNBT()) {
 			invalidType(key, "NBTTagCompound");
 		}
 		if (value == null) {
 			throw new IllegalArgumentException("Cannot use null for NBTTagCompound value");
 		}
-		data.put(key, value);
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, BlockPos value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForBlockPos()) {
+			invalidType(key, "BlockPos");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for BlockPos value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, Vec3 value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForVector()) {
+			invalidType(key, "Vec3");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for Vec3 value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, UUID value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForUUID()) {
+			invalidType(key, "UUID");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for UUID value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, int[] value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForIntArray()) {
+			invalidType(key, "int[]");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for int[] value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, short[] value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForShortArray()) {
+			invalidType(key, "short[]");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for short[] value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, long[] value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForLongArray()) {
+			invalidType(key, "long[]");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for long[] value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(String key, float[] value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForFloatArray()) {
+			invalidType(key, "float[]");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for float[] value");
+		}
+		values.setObject(idx, value);
 		return this;
 	}
 	
 	public PendingPacket with(String key, byte[] value) {
-		checkHasPacket();
-		if (!packet.getType(key).isValidForData()) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForData()) {
 			invalidType(key, "byte[]");
 		}
 		if (value == null) {
 			throw new IllegalArgumentException("Cannot use null for byte[] value");
 		}
-		data.put(key, value);
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	/**
+	 * Sets data from the readable bytes of the given buffer, without copying
+	 * them into an array. Large buffers are sliced straight into the sent
+	 * payload, which can outlive the send call when it's queued or streamed,
+	 * so the readable bytes must not be modified afterwards. The buffer's
+	 * indices aren't changed, and it can be released as soon as the send
+	 * method returns; the library keeps its own reference for as long as it
+	 * needs one.
+	 */
+	public PendingPacket with(String key, ByteBuf value) {
+		int idx = slot(key);
+		if (!codec.types[idx].isValidForData()) {
+			invalidType(key, "ByteBuf");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for ByteBuf value");
+		}
+		values.setObject(idx, value);
+		return this;
+	}
+	
+	/**
+	 * Sets data from the remaining bytes of the given buffer, without
+	 * copying them. Its position isn't changed. The same rules apply as for
+	 * {@link #with(String, ByteBuf)}.
+	 */
+	public PendingPacket with(String key, ByteBuffer value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for ByteBuffer value");
+		}
+		return with(key, Unpooled.wrappedBuffer(value));
+	}
+	
+	public PendingPacket with(IntField field, int value) {
+		int idx = slot(field);
+		if (field.ranged) {
+			codec.checkRange(idx, value);
+		}
+		values.setLong(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(LongField field, long value) {
+		int idx = slot(field);
+		if (field.ranged) {
+			codec.checkRange(idx, value);
+		}
+		values.setLong(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(FloatField field, float value) {
+		int idx = slot(field);
+		if (field.ranged) {
+			codec.checkRange(idx, value);
+		}
+		values.setDouble(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(DoubleField field, double value) {
+		int idx = slot(field);
+		if (field.ranged) {
+			codec.checkRange(idx, value);
+		}
+		values.setDouble(idx, value);
+		return this;
+	}
+	
+	public PendingPacket with(BoolField field, boolean value) {
+		values.setBoolean(slot(field), value);
+		return this;
+	}
+	
+	public PendingPacket with(StringField field, String value) {
+		int idx = slot(field);
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot use null for String value");
+		}
+		values.setObject(idx, value);
 		return this;
 	}
 	
@@ -158,21 +380,42 @@ public class PendingPacket {
 	}
 	
 	
-	private void checkHasPacket() {
+	private int slot(String key) {
 		if (packet == null) {
 			throw new IllegalArgumentException("Must specify packet before data");
 		}
+		return packet.indexOf(key);
+	}
+	
+	private int slot(DataField field) {
+		if (packet == null) {
+			throw new IllegalArgumentException("Must specify packet before data");
+		}
+		return field.slotIn(packet);
 	}
 
+	/**
+	 * Encodes this packet into an immutable {@link PreparedPacket}, which
+	 * can be sent any number of times without being encoded again. Changes
+	 * made to this PendingPacket afterwards don't affect it.
+	 */
+	public PreparedPacket prepare() {
+		checkNotPipeline();
+		if (packet == null) {
+			throw new IllegalArgumentException("Must specify packet before preparing");
+		}
+		return new PreparedPacket(channel, codec, channel.encodeUnpooled(this), values.copy());
+	}
+	
 	/**
 	 * For use on the server-side. Sends this packet to the given player.
 	 */
 	public void to(EntityPlayer player) {
-		if (packet.getSide().isServer()) wrongSide();
-		if (player instanceof EntityPlayerMP) {
-			for (Packet<INetHandlerPlayClient> p : toClientboundVanillaPackets()) {
-				((EntityPlayerMP)player).playerNetServerHandler.sendPacket(p);
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.to(player);
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -210,15 +453,11 @@ public class PendingPacket {
 	 * within the given radius of the given position.
 	 */
 	public void toAllAround(World world, double x, double y, double z, double radius) {
-		if (packet.getSide().isServer()) wrongSide();
-		double sq = radius*radius;
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-		for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
-			if (ep.getDistanceSq(x, y, z) <= sq) {
-				for (Packet<INetHandlerPlayClient> packet : packets) {
-					ep.playerNetServerHandler.sendPacket(packet);
-				}
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.toAllAround(world, x, y, z, radius);
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -227,20 +466,25 @@ public class PendingPacket {
 	 * see the given block.
 	 */
 	public void toAllWatching(World world, BlockPos pos) {
-		if (packet.getSide().isServer()) wrongSide();
-		if (world instanceof WorldServer) {
-			WorldServer srv = (WorldServer)world;
-			Chunk c = srv.getChunkFromBlockCoords(pos);
-			if (srv.getPlayerManager().hasPlayerInstance(c.xPosition, c.zPosition)) {
-				List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-				for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
-					if (srv.getPlayerManager().isPlayerWatchingChunk(ep, c.xPosition, c.zPosition)) {
-						for (Packet<INetHandlerPlayClient> packet : packets) {
-							ep.playerNetServerHandler.sendPacket(packet);
-						}
-					}
-				}
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.toAllWatching(world, pos);
+		} finally {
+			p.release();
+		}
+	}
+	
+	/**
+	 * For use on the server-side. Sends this packet to every player that can
+	 * see any of the given blocks. Each player is only sent the packet once,
+	 * no matter how many of the blocks they can see.
+	 */
+	public void toAllWatching(World world, Iterable<? extends BlockPos> positions) {
+		OneShotPacket p = oneShot();
+		try {
+			p.toAllWatching(world, positions);
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -258,13 +502,11 @@ public class PendingPacket {
 	 * see the given entity.
 	 */
 	public void toAllWatching(Entity e) {
-		if (packet.getSide().isServer()) wrongSide();
-		if (e.worldObj instanceof WorldServer) {
-			WorldServer srv = (WorldServer)e.worldObj;
-			List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-			for (Packet<INetHandlerPlayClient> packet : packets) {
-				srv.getEntityTracker().sendToAllTrackingEntity(e, packet);
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.toAllWatching(e);
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -273,12 +515,11 @@ public class PendingPacket {
 	 * given world.
 	 */
 	public void toAllIn(World world) {
-		if (packet.getSide().isServer()) wrongSide();
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-		for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
-			for (Packet<INetHandlerPlayClient> packet : packets) {
-				ep.playerNetServerHandler.sendPacket(packet);
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.toAllIn(world);
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -289,12 +530,11 @@ public class PendingPacket {
 	 * a packet to everyone.
 	 */
 	public void toEveryone() {
-		if (packet.getSide().isServer()) wrongSide();
-		List<Packet<INetHandlerPlayClient>> packets = toClientboundVanillaPackets();
-		for (EntityPlayerMP ep : MinecraftServer.getServer().getConfigurationManager().playerEntityList) {
-			for (Packet<INetHandlerPlayClient> packet : packets) {
-				ep.playerNetServerHandler.sendPacket(packet);
-			}
+		OneShotPacket p = oneShot();
+		try {
+			p.toEveryone();
+		} finally {
+			p.release();
 		}
 	}
 	
@@ -304,12 +544,17 @@ public class PendingPacket {
 	 */
 	@SideOnly(Side.CLIENT)
 	public void toServer() {
-		if (packet.getSide().isClient()) wrongSide();
-		Minecraft.getMinecraft().getNetHandler().addToSendQueue(toServerboundVanillaPacket());
+		OneShotPacket p = oneShot();
+		try {
+			p.toServer();
+		} finally {
+			p.release();
+		}
 	}
 	
-	private void wrongSide() {
-		throw new IllegalStateException("Packet '"+packet.getIdentifier()+"' cannot be sent from side "+packet.getSide());
+	private OneShotPacket oneShot() {
+		checkNotPipeline();
+		return new OneShotPacket(this);
 	}
 	
 	/**
@@ -317,7 +562,7 @@ public class PendingPacket {
 	 * use cases.
 	 */
 	public Packet<INetHandlerPlayServer> toServerboundVanillaPacket() {
-		return channel.getPacketFrom(this).toC17Packet();
+		return prepare().toServerboundVanillaPacket();
 	}
 	
 	/**
@@ -325,12 +570,7 @@ public class PendingPacket {
 	 * use cases.
 	 */
 	public List<Packet<INetHandlerPlayClient>> toClientboundVanillaPackets() {
-		try {
-			return channel.getPacketFrom(this).toS3FPackets();
-		} catch (IOException e) {
-			// toS3FPackets doesn't appear to actually throw IOExceptions
-			throw Throwables.propagate(e);
-		}
+		return prepare().toClientboundVanillaPackets();
 	}
 
 }
@@ -0,0 +1,63 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.LongHashMap;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+
+/**
+ * Lists of players keyed by world and chunk coordinates, shared by the
+ * player indexes. Empty lists are dropped so the maps only hold occupied
+ * chunks.
+ */
+final class PlayerBuckets {
+	private final Map<World, LongHashMap<List<EntityPlayerMP>>> worlds = new MapMaker().weakKeys().makeMap();
+
+	void add(World world, long key, EntityPlayerMP player) {
+		LongHashMap<List<EntityPlayerMP>> buckets = worlds.get(world);
+		if (buckets == null) {
+			buckets = new LongHashMap<List<EntityPlayerMP>>();
+			worlds.put(world, buckets);
+		}
+		List<EntityPlayerMP> bucket = buckets.getValueByKey(key);
+		if (bucket == null) {
+			bucket = Lists.newArrayListWithCapacity(2);
+			buckets.add(key, bucket);
+		}
+		if (!bucket.contains(player)) {
+			bucket.add(player);
+		}
+	}
+
+	void remove(World world, long key, EntityPlayerMP player) {
+		LongHashMap<List<EntityPlayerMP>> buckets = worlds.get(world);
+		if (buckets == null) return;
+		List<EntityPlayerMP> bucket = buckets.getValueByKey(key);
+		if (bucket == null) return;
+		bucket.remove(player);
+		if (bucket.isEmpty()) {
+			buckets.remove(key);
+		}
+	}
+
+	/**
+	 * @return the players in the given bucket, or null if there are none.
+	 * 		the returned list is live and must not be modified
+	 */
+	List<EntityPlayerMP> get(World world, int x, int z) {
+		LongHashMap<List<EntityPlayerMP>> buckets = worlds.get(world);
+		if (buckets == null) return null;
+		return buckets.getValueByKey(ChunkCoordIntPair.chunkXZ2Int(x, z));
+	}
+
+	static long key(int x, int z) {
+		return ChunkCoordIntPair.chunkXZ2Int(x, z);
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.common.collect.Maps;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerChangedDimensionEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedInEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerLoggedOutEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent.PlayerRespawnEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent.Phase;
+import net.minecraftforge.fml.common.gameevent.TickEvent.PlayerTickEvent;
+
+/**
+ * A per-world index of server players by chunk column, so that radius sends
+ * only have to look at the players that could possibly be in range. Updated
+ * whenever a player ticks, so positions are at most a tick out of date; the
+ * exact distance check happens against the player's real position.
+ * <p>
+ * Only touched from the server thread. Public only so that the event bus
+ * can call it.
+ */
+public final class PlayerGrid {
+	/** cells are one chunk column */
+	static final int CELL_SHIFT = 4;
+
+	private static final class Entry {
+		EntityPlayerMP player;
+		World world;
+		long key;
+	}
+
+	private final PlayerBuckets cells = new PlayerBuckets();
+	private final Map<UUID, Entry> entries = Maps.newHashMap();
+
+	PlayerGrid() {}
+
+
+	@SubscribeEvent
+	public void onPlayerTick(PlayerTickEvent e) {
+		if (e.phase == Phase.END && e.player instanceof EntityPlayerMP) {
+			update((EntityPlayerMP)e.player);
+		}
+	}
+
+	@SubscribeEvent
+	public void onLoggedIn(PlayerLoggedInEvent e) {
+		if (e.player instanceof EntityPlayerMP) {
+			update((EntityPlayerMP)e.player);
+		}
+	}
+
+	@SubscribeEvent
+	public void onRespawn(PlayerRespawnEvent e) {
+		if (e.player instanceof EntityPlayerMP) {
+			update((EntityPlayerMP)e.player);
+		}
+	}
+
+	@SubscribeEvent
+	public void onChangedDimension(PlayerChangedDimensionEvent e) {
+		if (e.player instanceof EntityPlayerMP) {
+			update((EntityPlayerMP)e.player);
+		}
+	}
+
+	@SubscribeEvent
+	public void onLoggedOut(PlayerLoggedOutEvent e) {
+		Entry en = entries.remove(e.player.getUniqueID());
+		if (en != null) {
+			cells.remove(en.world, en.key, en.player);
+		}
+	}
+
+
+	void update(EntityPlayerMP player) {
+		int cx = MathHelper.floor_double(player.posX) >> CELL_SHIFT;
+		int cz = MathHelper.floor_double(player.posZ) >> CELL_SHIFT;
+		long key = PlayerBuckets.key(cx, cz);
+		UUID id = player.getUniqueID();
+		Entry en = entries.get(id);
+		if (en == null) {
+			en = new Entry();
+			entries.put(id, en);
+		} else if (en.player == player && en.world == player.worldObj && en.key == key) {
+			return;
+		} else {
+			cells.remove(en.world, en.key, en.player);
+		}
+		en.player = player;
+		en.world = player.worldObj;
+		en.key = key;
+		cells.add(en.world, key, player);
+	}
+
+	/**
+	 * @return the players last seen in the given cell of the given world, or
+	 * 		null if there are none. the returned list is live and must not be
+	 * 		modified
+	 */
+	List<EntityPlayerMP> getCell(World world, int cellX, int cellZ) {
+		return cells.get(world, cellX, cellZ);
+	}
+
+}
@@ -0,0 +1,412 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.Sets;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.client.Minecraft;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NetHandlerPlayServer;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.INetHandlerPlayClient;
+import net.minecraft.network.play.INetHandlerPlayServer;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.management.PlayerManager;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.MathHelper;
+import net.minecraft.util.Vec3;
+import net.minecraft.util.Vec3i;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+/**
+ * An immutable, already-encoded packet, created by
+ * {@link PendingPacket#prepare()}. It can be sent any number of times, to any
+ * number of targets, without being encoded or copied again. Useful for
+ * payloads that go to lots of players or get resent often.
+ * <p>
+ * The vanilla packets are shared between every send. This relies on Forge's
+ * patch to the custom payload packets, which rewinds the payload after
+ * writing it so one packet object can go to any number of connections.
+ * They wrap a duplicate of the payload, as the rewinding happens on the
+ * network threads while the payload itself is still read from whichever
+ * thread is sending.
+ * <p>
+ * Packets that are {@link PacketSpec#deltaEncodedBy delta encoded} are the
+ * exception, since what gets sent depends on what each connection was sent
+ * last. They're still encoded again for every send.
+ */
+public class PreparedPacket {
+	protected final LambdaChannel channel;
+	protected final PacketSpec packet;
+	final PacketCodec codec;
+
+	private final ByteBuf payload;
+	private final Slots values;
+	private final List<Packet<INetHandlerPlayClient>> clientbound;
+	private final Packet<INetHandlerPlayServer> serverbound;
+	private final StateKey coalesceKey;
+
+	PreparedPacket(LambdaChannel channel, PacketCodec codec, ByteBuf payload, Slots values) {
+		this.channel = channel;
+		this.packet = codec.spec;
+		this.codec = codec;
+		this.payload = payload;
+		this.values = values;
+		this.coalesceKey = codec.coalesceKey(values);
+		if (payload != null) {
+			// the network threads move the indices of whatever these wrap
+			if (packet.getSide().isClient()) {
+				this.clientbound = channel.toClientboundPackets(payload.duplicate());
+				this.serverbound = null;
+			} else {
+				this.clientbound = null;
+				this.serverbound = channel.toServerboundPacket(payload.duplicate());
+			}
+		} else {
+			this.clientbound = null;
+			this.serverbound = null;
+		}
+	}
+
+	public PacketSpec getPacket() {
+		return packet;
+	}
+
+	/**
+	 * @return the size of the encoded payload, in bytes
+	 */
+	public int getSize() {
+		return payload().readableBytes();
+	}
+
+
+	/**
+	 * For use on the server-side. Sends this packet to the given player.
+	 */
+	public void to(EntityPlayer player) {
+		if (packet.getSide().isServer()) wrongSide();
+		int sent = 0;
+		if (player instanceof EntityPlayerMP && sendTo((EntityPlayerMP)player)) {
+			sent++;
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that is
+	 * within the given radius of the given position. <i>It is almost always
+	 * better to use {@link #toAllWatching(Entity)}, this is only useful for
+	 * certain special cases.</i>
+	 */
+	public void toAllAround(World world, Entity entity, double radius) {
+		toAllAround(world, entity.posX, entity.posY, entity.posZ, radius);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that is
+	 * within the given radius of the given position. <i>It is almost always
+	 * better to use {@link #toAllWatching(World, BlockPos)}, this is only
+	 * useful for certain special cases.</i>
+	 */
+	public void toAllAround(World world, Vec3i pos, double radius) {
+		toAllAround(world, pos.getX()+0.5, pos.getY()+0.5, pos.getZ()+0.5, radius);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that is
+	 * within the given radius of the given position.
+	 */
+	public void toAllAround(World world, Vec3 pos, double radius) {
+		toAllAround(world, pos.xCoord, pos.yCoord, pos.zCoord, radius);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that is
+	 * within the given radius of the given position.
+	 */
+	public void toAllAround(World world, double x, double y, double z, double radius) {
+		if (packet.getSide().isServer()) wrongSide();
+		double sq = radius*radius;
+		PlayerGrid grid = channel.getPlayerGrid();
+		int minX = MathHelper.floor_double(x-radius) >> PlayerGrid.CELL_SHIFT;
+		int maxX = MathHelper.floor_double(x+radius) >> PlayerGrid.CELL_SHIFT;
+		int minZ = MathHelper.floor_double(z-radius) >> PlayerGrid.CELL_SHIFT;
+		int maxZ = MathHelper.floor_double(z+radius) >> PlayerGrid.CELL_SHIFT;
+		long cells = (long)(maxX-minX+1)*(maxZ-minZ+1);
+		int sent = 0;
+		if (grid == null || cells > world.playerEntities.size()) {
+			// huge radius, quicker to just check everyone
+			List<EntityPlayer> players = world.playerEntities;
+			for (int i = 0; i < players.size(); i++) {
+				EntityPlayer ep = players.get(i);
+				if (ep instanceof EntityPlayerMP && ep.getDistanceSq(x, y, z) <= sq && sendTo((EntityPlayerMP)ep)) {
+					sent++;
+				}
+			}
+		} else {
+			for (int cx = minX; cx <= maxX; cx++) {
+				for (int cz = minZ; cz <= maxZ; cz++) {
+					List<EntityPlayerMP> cell = grid.getCell(world, cx, cz);
+					if (cell == null) continue;
+					for (int i = 0; i < cell.size(); i++) {
+						EntityPlayerMP ep = cell.get(i);
+						if (ep.worldObj == world && !ep.isDead && ep.getDistanceSq(x, y, z) <= sq && sendTo(ep)) {
+							sent++;
+						}
+					}
+				}
+			}
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that can
+	 * see the given block.
+	 */
+	public void toAllWatching(World world, BlockPos pos) {
+		if (packet.getSide().isServer()) wrongSide();
+		int cx = pos.getX() >> 4;
+		int cz = pos.getZ() >> 4;
+		ChunkWatchers watchers = channel.getChunkWatchers();
+		int sent = 0;
+		if (watchers != null) {
+			List<EntityPlayerMP> li = watchers.get(world, cx, cz);
+			if (li != null) {
+				for (int i = 0; i < li.size(); i++) {
+					if (sendTo(li.get(i))) sent++;
+				}
+			}
+		} else if (world instanceof WorldServer) {
+			PlayerManager pm = ((WorldServer)world).getPlayerManager();
+			if (pm.hasPlayerInstance(cx, cz)) {
+				for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
+					if (pm.isPlayerWatchingChunk(ep, cx, cz) && sendTo(ep)) {
+						sent++;
+					}
+				}
+			}
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that can
+	 * see any of the given blocks. Each player is only sent the packet once,
+	 * no matter how many of the blocks they can see.
+	 */
+	public void toAllWatching(World world, Iterable<? extends BlockPos> positions) {
+		if (packet.getSide().isServer()) wrongSide();
+		Set<Long> chunks = Sets.newHashSet();
+		for (BlockPos pos : positions) {
+			chunks.add(PlayerBuckets.key(pos.getX() >> 4, pos.getZ() >> 4));
+		}
+		if (chunks.isEmpty()) {
+			codec.metrics.getRecipients().record(0);
+			return;
+		}
+		Set<EntityPlayerMP> sent = Collections.newSetFromMap(new IdentityHashMap<EntityPlayerMP, Boolean>());
+		int recipients = 0;
+		ChunkWatchers watchers = channel.getChunkWatchers();
+		if (watchers != null) {
+			for (long key : chunks) {
+				List<EntityPlayerMP> li = watchers.get(world, (int)key, (int)(key >> 32));
+				if (li == null) continue;
+				for (int i = 0; i < li.size(); i++) {
+					EntityPlayerMP ep = li.get(i);
+					if (sent.add(ep) && sendTo(ep)) {
+						recipients++;
+					}
+				}
+			}
+		} else if (world instanceof WorldServer) {
+			PlayerManager pm = ((WorldServer)world).getPlayerManager();
+			for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
+				for (long key : chunks) {
+					if (pm.isPlayerWatchingChunk(ep, (int)key, (int)(key >> 32))) {
+						if (sendTo(ep)) recipients++;
+						break;
+					}
+				}
+			}
+		}
+		codec.metrics.getRecipients().record(recipients);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that can
+	 * see the given tile entity.
+	 */
+	public void toAllWatching(TileEntity te) {
+		toAllWatching(te.getWorld(), te.getPos());
+	}
+
+
+	/**
+	 * For use on the server-side. Sends this packet to every player that can
+	 * see the given entity.
+	 */
+	public void toAllWatching(Entity e) {
+		if (packet.getSide().isServer()) wrongSide();
+		int sent = 0;
+		if (e.worldObj instanceof WorldServer) {
+			for (EntityPlayer ep : ((WorldServer)e.worldObj).getEntityTracker().getTrackingPlayers(e)) {
+				if (ep instanceof EntityPlayerMP && sendTo((EntityPlayerMP)ep)) {
+					sent++;
+				}
+			}
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+	/**
+	 * For use on the server-side. Sends this packet to every player in the
+	 * given world.
+	 */
+	public void toAllIn(World world) {
+		if (packet.getSide().isServer()) wrongSide();
+		int sent = 0;
+		for (EntityPlayerMP ep : world.getPlayers(EntityPlayerMP.class, Predicates.alwaysTrue())) {
+			if (sendTo(ep)) sent++;
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+
+	/**
+	 * For use on the server-side. Sends this packet to every player currently
+	 * connected to the server. Use sparingly, you almost never need to send
+	 * a packet to everyone.
+	 */
+	public void toEveryone() {
+		if (packet.getSide().isServer()) wrongSide();
+		int sent = 0;
+		for (EntityPlayerMP ep : MinecraftServer.getServer().getConfigurationManager().playerEntityList) {
+			if (sendTo(ep)) sent++;
+		}
+		codec.metrics.getRecipients().record(sent);
+	}
+
+	/**
+	 * For use on the <i>client</i>-side. This is the only valid method for use
+	 * on the client side.
+	 */
+	@SideOnly(Side.CLIENT)
+	public void toServer() {
+		if (packet.getSide().isClient()) wrongSide();
+		sendToServer();
+		codec.metrics.getRecipients().record(1);
+	}
+
+	private void wrongSide() {
+		throw new IllegalStateException("Packet '"+packet.getIdentifier()+"' cannot be sent from side "+packet.getSide());
+	}
+
+
+	/**
+	 * Mainly intended for internal use, but can be useful for more complex
+	 * use cases. The returned packets are shared, and must not be modified.
+	 * Sending them directly bypasses bundling, coalescing and compression,
+	 * so use the target methods above where possible.
+	 */
+	public List<Packet<INetHandlerPlayClient>> toClientboundVanillaPackets() {
+		if (packet.getSide().isServer()) wrongSide();
+		return clientboundPackets();
+	}
+
+	/**
+	 * Mainly intended for internal use, but can be useful for more complex
+	 * use cases. The returned packet is shared, and must not be modified.
+	 */
+	public Packet<INetHandlerPlayServer> toServerboundVanillaPacket() {
+		if (packet.getSide().isClient()) wrongSide();
+		return serverboundPacket();
+	}
+
+
+	ByteBuf payload() {
+		return payload;
+	}
+
+	StateKey coalesceKey() {
+		return coalesceKey;
+	}
+
+	/**
+	 * @return the values this packet was encoded from, which must not change
+	 * 		afterwards
+	 */
+	Slots snapshot() {
+		return values;
+	}
+
+	List<Packet<INetHandlerPlayClient>> clientboundPackets() {
+		return clientbound;
+	}
+
+	Packet<INetHandlerPlayServer> serverboundPacket() {
+		return serverbound;
+	}
+
+	/**
+	 * @return false if the player isn't connected, such as fake players
+	 */
+	boolean sendTo(EntityPlayerMP player) {
+		NetHandlerPlayServer handler = player.playerNetServerHandler;
+		if (handler == null) return false; // fake players
+		if (codec.stateful) {
+			channel.sendStatefulToClient(player, this);
+			return true;
+		}
+		codec.metrics.recordSent(payload.readableBytes());
+		if (channel.startTransfer(player, codec, payload)) return true;
+		if (channel.enqueue(player, payload, coalesceKey)) return true;
+		if (channel.compresses(handler.netManager, payload)) {
+			channel.sendNow(player, payload);
+			return true;
+		}
+		if (handler.netManager.isLocalChannel()) {
+			// local packets are handed to the client as-is, and reading them
+			// consumes the payload, so they can't be shared
+			for (Packet<INetHandlerPlayClient> p : channel.toClientboundPackets(payload.duplicate())) {
+				handler.sendPacket(p);
+			}
+		} else {
+			for (Packet<INetHandlerPlayClient> p : clientbound) {
+				handler.sendPacket(p);
+			}
+		}
+		return true;
+	}
+
+	@SideOnly(Side.CLIENT)
+	void sendToServer() {
+		if (codec.stateful) {
+			channel.sendStatefulToServer(this);
+			return;
+		}
+		codec.metrics.recordSent(payload.readableBytes());
+		NetworkManager nm = Minecraft.getMinecraft().getNetHandler().getNetworkManager();
+		if (channel.compresses(nm, payload)) {
+			channel.sendToServer(payload);
+		} else if (nm.isLocalChannel()) {
+			nm.sendPacket(channel.toServerboundPacket(payload.duplicate()));
+		} else {
+			nm.sendPacket(serverbound);
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The values of one packet, stored by slot index. Numbers and booleans go in
+ * primitive arrays so that nothing gets boxed between the builder, the wire,
+ * and the token getters.
+ */
+final class Slots {
+	final PacketCodec codec;
+
+	final long[] longs;
+	final double[] doubles;
+	final Object[] objects;
+
+	private final boolean[] present;
+
+	Slots(PacketCodec codec) {
+		this.codec = codec;
+		int size = codec.keys.length;
+		this.longs = codec.longSlots > 0 ? new long[size] : null;
+		this.doubles = codec.doubleSlots > 0 ? new double[size] : null;
+		this.objects = codec.referenceSlots > 0 ? new Object[size] : null;
+		this.present = new boolean[size];
+	}
+
+
+	void setLong(int slot, long value) {
+		if (codec.types[slot].storage == DataType.Storage.DOUBLE) {
+			doubles[slot] = value;
+		} else {
+			longs[slot] = value;
+		}
+		present[slot] = true;
+	}
+
+	void setDouble(int slot, double value) {
+		doubles[slot] = value;
+		present[slot] = true;
+	}
+
+	void setBoolean(int slot, boolean value) {
+		longs[slot] = value ? 1 : 0;
+		present[slot] = true;
+	}
+
+	void setObject(int slot, Object value) {
+		objects[slot] = value;
+		present[slot] = true;
+	}
+
+	/**
+	 * Sets a slot from a boxed value, for legacy callers that only have an
+	 * Object.
+	 */
+	void setBoxed(int slot, Object value) {
+		switch (codec.types[slot].storage) {
+			case LONG:
+				if (value instanceof Boolean) {
+					setBoolean(slot, (Boolean)value);
+				} else if (value instanceof Enum) {
+					setLong(slot, ((Enum<?>)value).ordinal());
+				} else {
+					setLong(slot, ((Number)value).longValue());
+				}
+				break;
+			case DOUBLE:
+				setDouble(slot, ((Number)value).doubleValue());
+				break;
+			default:
+				setObject(slot, value);
+				break;
+		}
+	}
+
+
+	long getLong(int slot) {
+		if (codec.types[slot].storage == DataType.Storage.DOUBLE) {
+			return (long)doubles[slot];
+		}
+		return longs[slot];
+	}
+
+	double getDouble(int slot) {
+		if (codec.types[slot].storage == DataType.Storage.LONG) {
+			return longs[slot];
+		}
+		return doubles[slot];
+	}
+
+	boolean getBoolean(int slot) {
+		return longs[slot] != 0;
+	}
+
+	Object getObject(int slot) {
+		return objects[slot];
+	}
+
+	Object getBoxed(int slot) {
+		DataType type = codec.types[slot];
+		switch (type.storage) {
+			case LONG:
+				if (type == DataType.BOOLEAN) return getBoolean(slot);
+				if (type == DataType.ENUM) return codec.enumConstants[slot][(int)longs[slot]];
+				return longs[slot];
+			case DOUBLE:
+				return doubles[slot];
+			default:
+				return objects[slot];
+		}
+	}
+
+
+	/**
+	 * @return true if the given slot holds the same value here and in the
+	 * 		other slots, which must be for the same packet
+	 */
+	boolean sameValue(int slot, Slots other) {
+		switch (codec.types[slot].storage) {
+			case LONG:
+				return longs[slot] == other.longs[slot];
+			case DOUBLE:
+				return Double.doubleToLongBits(doubles[slot]) == Double.doubleToLongBits(other.doubles[slot]);
+			default:
+				Object a = objects[slot];
+				Object b = other.objects[slot];
+				if (a instanceof byte[] && b instanceof byte[]) {
+					return Arrays.equals((byte[])a, (byte[])b);
+				}
+				if (a instanceof byte[] && b instanceof ByteBuf) {
+					return Unpooled.wrappedBuffer((byte[])a).equals(b);
+				}
+				if (a instanceof ByteBuf && b instanceof byte[]) {
+					return a.equals(Unpooled.wrappedBuffer((byte[])b));
+				}
+				if (a instanceof int[] && b instanceof int[]) {
+					return Arrays.equals((int[])a, (int[])b);
+				}
+				if (a instanceof short[] && b instanceof short[]) {
+					return Arrays.equals((short[])a, (short[])b);
+				}
+				if (a instanceof long[] && b instanceof long[]) {
+					return Arrays.equals((long[])a, (long[])b);
+				}
+				if (a instanceof float[] && b instanceof float[]) {
+					return Arrays.equals((float[])a, (float[])b);
+				}
+				return Objects.equal(a, b);
+		}
+	}
+
+	void copyFrom(int slot, Slots other) {
+		switch (codec.types[slot].storage) {
+			case LONG:
+				longs[slot] = other.longs[slot];
+				break;
+			case DOUBLE:
+				doubles[slot] = other.doubles[slot];
+				break;
+			default:
+				objects[slot] = other.objects[slot];
+				break;
+		}
+		present[slot] = other.present[slot];
+	}
+
+	/**
+	 * @return an independent copy of these slots. the referenced objects
+	 * 		themselves are shared, except for buffers, which belong to someone
+	 * 		else and get copied into arrays, and arrays, which can be changed
+	 * 		in place and get cloned
+	 */
+	Slots copy() {
+		Slots copy = new Slots(codec);
+		for (int i = 0; i < present.length; i++) {
+			copy.copyFrom(i, this);
+			if (copy.objects != null) {
+				copy.objects[i] = detach(copy.objects[i]);
+			}
+		}
+		return copy;
+	}
+
+	private static Object detach(Object o) {
+		if (o instanceof ByteBuf) {
+			ByteBuf buf = (ByteBuf)o;
+			byte[] arr = new byte[buf.readableBytes()];
+			buf.getBytes(buf.readerIndex(), arr);
+			return arr;
+		} else if (o instanceof byte[]) {
+			return ((byte[])o).clone();
+		} else if (o instanceof int[]) {
+			return ((int[])o).clone();
+		} else if (o instanceof short[]) {
+			return ((short[])o).clone();
+		} else if (o instanceof long[]) {
+			return ((long[])o).clone();
+		} else if (o instanceof float[]) {
+			return ((float[])o).clone();
+		}
+		return o;
+	}
+
+
+	boolean isPresent(int slot) {
+		return present[slot];
+	}
+
+	void markAllPresent() {
+		for (int i = 0; i < present.length; i++) {
+			present[i] = true;
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if any of the slots have not been
+	 * 		filled in
+	 */
+	void checkComplete() {
+		for (int i = 0; i < present.length; i++) {
+			if (!present[i]) {
+				List<String> missing = Lists.newArrayList();
+				for (int j = i; j < present.length; j++) {
+					if (!present[j]) missing.add(codec.keys[j]);
+				}
+				throw new IllegalArgumentException("Missing data for keys "+missing+" in packet '"+codec.spec.getIdentifier()+"'");
+			}
+		}
+	}
+
+	/**
+	 * @return a boxed snapshot of every slot that has been filled in, by key
+	 */
+	Map<String, Object> toMap() {
+		Map<String, Object> map = Maps.newLinkedHashMap();
+		for (int i = 0; i < present.length; i++) {
+			if (present[i]) {
+				map.put(codec.keys[i], getBoxed(i));
+			}
+		}
+		return map;
+	}
+
+}
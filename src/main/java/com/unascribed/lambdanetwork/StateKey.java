@@ -0,0 +1,34 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Arrays;
+
+/**
+ * Identifies what a keyed packet is the state of: the packet, and the values
+ * of its key fields. Coalesced packets replace queued sends with an equal
+ * key, and delta encoded packets keep one baseline per key.
+ */
+final class StateKey {
+	final PacketCodec codec;
+	private final Object[] values;
+	private final int hashCode;
+
+	StateKey(PacketCodec codec, Object[] values) {
+		this.codec = codec;
+		this.values = values;
+		this.hashCode = codec.discriminator*31 + Arrays.deepHashCode(values);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) return true;
+		if (!(obj instanceof StateKey)) return false;
+		StateKey that = (StateKey)obj;
+		return codec == that.codec && hashCode == that.hashCode && Arrays.deepEquals(values, that.values);
+	}
+
+}
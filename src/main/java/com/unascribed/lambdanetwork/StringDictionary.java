@@ -0,0 +1,103 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * One direction of a connection's table of {@link DataType#INTERNED_STRING
+ * interned strings}. The sending side hands out ids, and once the table is
+ * full it evicts the least recently sent string and reuses its id. The
+ * receiving side just stores whatever each definition tells it to, so the
+ * two stay in step as long as packets are decoded in the order they were
+ * encoded.
+ * <p>
+ * Each string is sent as a varint code, followed by the string itself
+ * unless the code is a reference:
+ * <ul>
+ * <li>0: inline, not remembered</li>
+ * <li>odd: inline, remembered as id {@code code >>> 1}</li>
+ * <li>even: a reference to id {@code (code >>> 1) - 1}</li>
+ * </ul>
+ * Guarded by the monitor of the {@link ConnectionState} that owns it.
+ */
+final class StringDictionary {
+	/** how many strings each side of a connection remembers */
+	static final int MAX_STRINGS = 1024;
+	/** strings longer than this are always sent inline */
+	static final int MAX_LENGTH = 256;
+
+	private static final int INLINE = 0;
+
+	/** ids of the strings the other side knows, least recently sent first */
+	private final Map<String, Integer> ids = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+	/** strings the other side has defined, by id */
+	private String[] strings;
+
+	/**
+	 * @return the code to send the given string as, updating the table as if
+	 * 		it had been sent
+	 */
+	private int codeFor(String str) {
+		if (str.length() > MAX_LENGTH) return INLINE;
+		Integer id = ids.get(str);
+		if (id != null) return (id+1) << 1;
+		int newId;
+		if (ids.size() < MAX_STRINGS) {
+			newId = ids.size();
+		} else {
+			Iterator<Integer> iter = ids.values().iterator();
+			newId = iter.next();
+			iter.remove();
+		}
+		ids.put(str, newId);
+		return (newId << 1) | 1;
+	}
+
+	/**
+	 * Writes the given string, interned in the given dictionary if there is
+	 * one, or inline if it's null.
+	 */
+	static void write(ByteBuf buf, String str, StringDictionary dict) {
+		int code = dict == null ? INLINE : dict.codeFor(str);
+		WireFormat.writeVarInt(buf, code, 5);
+		if (code == INLINE || (code & 1) != 0) {
+			WireFormat.writeUTF8String(buf, str);
+		}
+	}
+
+	/**
+	 * Reads a string, looking it up in or adding it to the given dictionary.
+	 * Without a dictionary, only inline strings can be read.
+	 */
+	static String read(ByteBuf buf, StringDictionary dict) {
+		int code = WireFormat.readVarInt(buf, 5);
+		if (code == INLINE) {
+			return WireFormat.readUTF8String(buf);
+		}
+		if (dict == null) {
+			throw new IllegalArgumentException("Interned string code "+code+" outside of a connection");
+		}
+		boolean define = (code & 1) != 0;
+		int id = define ? code >>> 1 : (code >>> 1)-1;
+		if (id >= MAX_STRINGS) {
+			throw new IllegalArgumentException("Interned string id "+id+" is out of range");
+		}
+		if (dict.strings == null) {
+			dict.strings = new String[MAX_STRINGS];
+		}
+		if (define) {
+			String str = WireFormat.readUTF8String(buf);
+			dict.strings[id] = str;
+			return str;
+		}
+		String str = dict.strings[id];
+		if (str == null) {
+			throw new IllegalArgumentException("Unknown interned string id "+id);
+		}
+		return str;
+	}
+
+}
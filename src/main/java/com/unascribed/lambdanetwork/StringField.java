@@ -0,0 +1,11 @@
+package com.unascribed.lambdanetwork;
+
+/**
+ * A handle on a string data entry, from {@link PacketSpec#stringField(String)}.
+ */
+public final class StringField extends DataField {
+	
+	StringField(PacketSpec spec, String key) {
+		super(spec, key);
+	}
+}
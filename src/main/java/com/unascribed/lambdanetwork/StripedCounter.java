@@ -0,0 +1,55 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter split into a few cells, each on its own cache line, so threads
+ * adding to it at once mostly don't touch the same memory. Threads pick a
+ * cell by their id, which spreads Netty's IO threads out well. Reading it
+ * adds every cell up, so it's only exact once the writers have stopped.
+ */
+final class StripedCounter {
+	/** longs per cache line, so each cell gets a line of its own */
+	private static final int PAD = 8;
+	private static final int STRIPES;
+	static {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < cpus && stripes < 16) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES*PAD);
+
+	void add(long n) {
+		cells.addAndGet(cell(), n);
+	}
+
+	void increment() {
+		cells.incrementAndGet(cell());
+	}
+
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i*PAD);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i*PAD, 0);
+		}
+	}
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		// thread ids are sequential, so mix them before masking
+		int h = (int)(id*0x9E3779B97F4A7C15L >>> 32);
+		return (h & (STRIPES-1))*PAD;
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Runs tasks on another executor, one at a time for each key and in the
+ * order they were submitted, while tasks for different keys run in parallel.
+ * {@link PacketSpec#handledAsyncBy Async handlers} are keyed by player, so
+ * each player's packets are handled in the order they arrived without one
+ * player's backlog holding up anyone else's.
+ * <p>
+ * Each key only has a lane while it has tasks waiting, and each lane gives
+ * up its thread after every task, so a player flooding the channel can't
+ * crowd everyone else out of a small pool.
+ */
+final class StripedExecutor {
+	private static final Logger log = LogManager.getLogger("LambdaNetwork");
+	/** stands in for the player on the client, and for packets without one */
+	private static final Object NO_KEY = new Object();
+
+	private final Executor executor;
+	/** guarded by this */
+	private final Map<Object, Lane> lanes = Maps.newHashMap();
+
+	StripedExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Queues the given task behind every other task with the same key. The
+	 * token is retained until the task has run. Throws whatever the
+	 * underlying executor throws if it won't take the task, in which case
+	 * the task is dropped.
+	 */
+	void execute(Object key, Token token, Runnable task) {
+		if (key == null) key = NO_KEY;
+		Lane lane;
+		synchronized (this) {
+			lane = lanes.get(key);
+			if (lane == null) {
+				lane = new Lane(key);
+				lanes.put(key, lane);
+			}
+			token.retain();
+			lane.tasks.add(new Task(token, task));
+			if (lane.running) return;
+			lane.running = true;
+		}
+		submit(lane);
+	}
+
+	private void submit(Lane lane) {
+		try {
+			executor.execute(lane);
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				// the tasks behind the rejected one would never run either
+				for (Task task : lane.tasks) {
+					task.token.release();
+				}
+				lane.tasks.clear();
+				lane.running = false;
+				lanes.remove(lane.key);
+			}
+			throw e;
+		}
+	}
+
+	private static final class Task {
+		final Token token;
+		final Runnable runnable;
+
+		Task(Token token, Runnable runnable) {
+			this.token = token;
+			this.runnable = runnable;
+		}
+	}
+
+	private final class Lane implements Runnable {
+		final Object key;
+		/** guarded by the owning StripedExecutor */
+		final Queue<Task> tasks = new ArrayDeque<Task>();
+		boolean running;
+
+		Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			Task task;
+			synchronized (StripedExecutor.this) {
+				task = tasks.poll();
+			}
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				log.error("Error handling lambda packet '"+task.token.getValues().codec.spec.getIdentifier()+"'", e);
+			} finally {
+				task.token.release();
+			}
+			synchronized (StripedExecutor.this) {
+				if (tasks.isEmpty()) {
+					running = false;
+					lanes.remove(key);
+					return;
+				}
+			}
+			try {
+				submit(this);
+			} catch (RuntimeException e) {
+				log.error("Executor rejected lambda packets, dropping them", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,5 @@
+package com.unascribed.lambdanetwork;
+
+public interface ToDoubleFunction<T> {
+	double applyAsDouble(T t);
+}
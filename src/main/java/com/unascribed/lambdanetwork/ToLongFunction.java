@@ -0,0 +1,5 @@
+package com.unascribed.lambdanetwork;
+
+public interface ToLongFunction<T> {
+	long applyAsLong(T t);
+}
@@ -1,77 +1,238 @@
 package com.unascribed.lambdanetwork;
 
-import java.util.Map;
-
-import com.google.common.collect.Maps;
+import java.util.UUID;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.BlockPos;
+import net.minecraft.util.Vec3;
 
 public class Token {
 	private PacketSpec packet;
-	private Map<String, Object> data = Maps.newHashMap();
+	private PacketCodec codec;
+	private Slots values;
+	/** the payload our data fields are slices of, if any */
+	private ByteBuf source;
+	private int holds;
 
 	public Token(PacketSpec spec) {
-		this.packet = spec;
+		// only ever filled in by hand, so not worth generating a class for
+		this(new PacketCodec(spec, -1, false));
+	}
+	
+	Token(PacketCodec codec) {
+		this.packet = codec.spec;
+		this.codec = codec;
+		this.values = new Slots(codec);
 	}
 	
 	protected void putData(String key, Object value) {
-		data.put(key, value);
+		values.setBoxed(packet.indexOf(key), value);
+	}
+	
+	Slots getValues() {
+		return values;
+	}
+	
+	/**
+	 * Keeps the given payload alive until this token is released.
+	 */
+	void hold(ByteBuf payload) {
+		source = payload.retain();
+		holds = 1;
+	}
+	
+	/**
+	 * Keeps this token's payload alive for one more {@link #release()}, for
+	 * handlers that run later.
+	 */
+	synchronized void retain() {
+		if (source != null) holds++;
+	}
+	
+	synchronized void release() {
+		if (source != null && --holds == 0) {
+			source.release();
+			source = null;
+		}
 	}
 	
 	public int getInt(String key) {
-		if (!packet.getType(key).isValidForInteger()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForInteger()) {
 			invalidType(key, "int");
 		}
-		return ((Number)data.get(key)).intValue();
+		return (int)values.getLong(idx);
 	}
 	
 	public long getLong(String key) {
-		if (!packet.getType(key).isValidForInteger()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForInteger()) {
 			invalidType(key, "long");
 		}
-		return ((Number)data.get(key)).longValue();
+		return values.getLong(idx);
 	}
 	
 	public float getFloat(String key) {
-		if (!packet.getType(key).isValidForInteger() && !packet.getType(key).isValidForFloating()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForInteger() && !codec.types[idx].isValidForFloating()) {
 			invalidType(key, "float");
 		}
-		return ((Number)data.get(key)).floatValue();
+		return (float)values.getDouble(idx);
 	}
 	
 	public double getDouble(String key) {
-		if (!packet.getType(key).isValidForInteger() && !packet.getType(key).isValidForFloating()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForInteger() && !codec.types[idx].isValidForFloating()) {
 			invalidType(key, "double");
 		}
-		return ((Number)data.get(key)).doubleValue();
+		return values.getDouble(idx);
 	}
 	
 	public boolean getBoolean(String key) {
-		if (!packet.getType(key).isValidForBoolean()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForBoolean()) {
 			invalidType(key, "boolean");
 		}
-		return ((Boolean)data.get(key));
+		return values.getBoolean(idx);
+	}
+	
+	public <E extends Enum<E>> E getEnum(String key, Class<E> enumType) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForEnum() || packet.getEnumType(key) != enumType) {
+			invalidType(key, enumType.getName());
+		}
+		return enumType.cast(codec.enumConstants[idx][(int)values.getLong(idx)]);
 	}
 	
 	public String getString(String key) {
-		if (!packet.getType(key).isValidForString()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForString()) {
 			invalidType(key, "String");
 		}
-		return String.valueOf(data.get(key));
+		return String.valueOf(values.getObject(idx));
+	}
+	
+	public BlockPos getBlockPos(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForBlockPos()) {
+			invalidType(key, "BlockPos");
+		}
+		return ((BlockPos)values.getObject(idx));
+	}
+	
+	public Vec3 getVector(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForVector()) {
+			invalidType(key, "Vec3");
+		}
+		return ((Vec3)values.getObject(idx));
+	}
+	
+	public UUID getUUID(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForUUID()) {
+			invalidType(key, "UUID");
+		}
+		return ((UUID)values.getObject(idx));
+	}
+	
+	public int[] getIntArray(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForIntArray()) {
+			invalidType(key, "int[]");
+		}
+		return ((int[])values.getObject(idx));
+	}
+	
+	public short[] getShortArray(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForShortArray()) {
+			invalidType(key, "short[]");
+		}
+		return ((short[])values.getObject(idx));
+	}
+	
+	public long[] getLongArray(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForLongArray()) {
+			invalidType(key, "long[]");
+		}
+		return ((long[])values.getObject(idx));
+	}
+	
+	public float[] getFloatArray(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForFloatArray()) {
+			invalidType(key, "float[]");
+		}
+		return ((float[])values.getObject(idx));
 	}
 	
 	public byte[] getData(String key) {
-		if (!packet.getType(key).isValidForData()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForData()) {
 			invalidType(key, "byte[]");
 		}
-		return ((byte[])data.get(key));
+		Object o = values.getObject(idx);
+		if (o instanceof ByteBuf) {
+			ByteBuf buf = (ByteBuf)o;
+			byte[] arr = new byte[buf.readableBytes()];
+			buf.getBytes(buf.readerIndex(), arr);
+			return arr;
+		}
+		return ((byte[])o);
+	}
+	
+	/**
+	 * Returns data without copying it, as a read-only view of the received
+	 * packet. The returned buffer belongs to the caller, who must
+	 * {@link ByteBuf#release() release} it when done with it; until then, it
+	 * stays valid even after the handler returns.
+	 */
+	public ByteBuf getBuffer(String key) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForData()) {
+			invalidType(key, "ByteBuf");
+		}
+		Object o = values.getObject(idx);
+		if (o instanceof ByteBuf) {
+			return Unpooled.unmodifiableBuffer((ByteBuf)o).retain();
+		}
+		return Unpooled.unmodifiableBuffer(Unpooled.wrappedBuffer((byte[])o));
 	}
 	
 	public NBTTagCompound getNBT(String key) {
-		if (!packet.getType(key).isValidForNBT()) {
+		int idx = packet.indexOf(key);
+		if (!codec.types[idx].isValidForNBT()) {
 			invalidType(key, "NBTTagCompound");
 		}
-		return ((NBTTagCompound)data.get(key));
+		return ((NBTTagCompound)values.getObject(idx));
+	}
+	
+	public int get(IntField field) {
+		return (int)values.getLong(field.slotIn(packet));
+	}
+	
+	public long get(LongField field) {
+		return values.getLong(field.slotIn(packet));
+	}
+	
+	public float get(FloatField field) {
+		return (float)values.getDouble(field.slotIn(packet));
+	}
+	
+	public double get(DoubleField field) {
+		return values.getDouble(field.slotIn(packet));
+	}
+	
+	public boolean get(BoolField field) {
+		return values.getBoolean(field.slotIn(packet));
+	}
+	
+	public String get(StringField field) {
+		return String.valueOf(values.getObject(field.slotIn(packet)));
 	}
 	
 	private void invalidType(String key, String type) {
@@ -0,0 +1,70 @@
+package com.unascribed.lambdanetwork;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The varints and strings everything on the wire is built from. Byte for
+ * byte the same as FML's ByteBufUtils, so packets are unchanged, but with
+ * nothing but Netty behind it, so the codecs work outside of a game
+ * instance.
+ */
+final class WireFormat {
+
+	private WireFormat() {}
+
+	/**
+	 * @return how many bytes the given int takes as a varint
+	 */
+	static int varIntByteCount(int i) {
+		if ((i & 0xFFFFFF80) == 0) return 1;
+		if ((i & 0xFFFFC000) == 0) return 2;
+		if ((i & 0xFFE00000) == 0) return 3;
+		if ((i & 0xF0000000) == 0) return 4;
+		return 5;
+	}
+
+	static void writeVarInt(ByteBuf buf, int i, int maxSize) {
+		Preconditions.checkArgument(varIntByteCount(i) <= maxSize, "Integer is too big for %s bytes", maxSize);
+		while ((i & 0xFFFFFF80) != 0) {
+			buf.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		buf.writeByte(i);
+	}
+
+	static int readVarInt(ByteBuf buf, int maxSize) {
+		int i = 0;
+		int bytes = 0;
+		byte b;
+		do {
+			b = buf.readByte();
+			i |= (b & 0x7F) << (bytes++ * 7);
+			if (bytes > maxSize) {
+				throw new IllegalArgumentException("Varint longer than "+maxSize+" bytes");
+			}
+		} while ((b & 0x80) != 0);
+		return i;
+	}
+
+	/**
+	 * Writes the given string as UTF-8, prefixed with its length in bytes as
+	 * a varint of at most 2 bytes.
+	 */
+	static void writeUTF8String(ByteBuf buf, String str) {
+		byte[] bytes = str.getBytes(Charsets.UTF_8);
+		Preconditions.checkArgument(varIntByteCount(bytes.length) <= 2, "String of %s bytes is too long", bytes.length);
+		writeVarInt(buf, bytes.length, 2);
+		buf.writeBytes(bytes);
+	}
+
+	static String readUTF8String(ByteBuf buf) {
+		int len = readVarInt(buf, 2);
+		String str = buf.toString(buf.readerIndex(), len, Charsets.UTF_8);
+		buf.skipBytes(len);
+		return str;
+	}
+
+}
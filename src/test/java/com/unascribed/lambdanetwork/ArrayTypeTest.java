@@ -0,0 +1,89 @@
+package com.unascribed.lambdanetwork;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Array;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class ArrayTypeTest {
+	private static final DataType[] ARRAYS = {
+			DataType.INT_ARRAY, DataType.VARINT_ARRAY, DataType.SHORT_ARRAY,
+			DataType.LONG_ARRAY, DataType.FLOAT_ARRAY, DataType.ARBITRARY
+	};
+
+	private static Object sample(DataType type) {
+		switch (type) {
+			case INT_ARRAY: return new int[] { 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+			case VARINT_ARRAY: return new int[] { 0, 127, 128, -1, Integer.MAX_VALUE };
+			case SHORT_ARRAY: return new short[] { 0, -1, Short.MAX_VALUE, Short.MIN_VALUE };
+			case LONG_ARRAY: return new long[] { 0, -1, Long.MAX_VALUE, Long.MIN_VALUE };
+			case FLOAT_ARRAY: return new float[] { 0, -1.5f, Float.MAX_VALUE, Float.NaN };
+			case ARBITRARY: return new byte[] { 0, -1, 127, -128 };
+			default: throw new IllegalArgumentException(type.name());
+		}
+	}
+
+	@Test
+	public void arraysRoundTrip() {
+		for (DataType type : ARRAYS) {
+			for (boolean empty : new boolean[] { false, true }) {
+				Object arr = empty ? Array.newInstance(sample(type).getClass().getComponentType(), 0) : sample(type);
+				ByteBuf buf = Unpooled.buffer();
+				type.writer.accept(buf, arr);
+				assertEquals(type.name(), type.sizeOf(arr), buf.readableBytes());
+				Object out = type.reader.apply(buf);
+				assertFalse(type.name(), buf.isReadable());
+				assertEquals(type.name(), Array.getLength(arr), Array.getLength(out));
+				for (int i = 0; i < Array.getLength(arr); i++) {
+					assertEquals(type.name()+"["+i+"]", Array.get(arr, i), Array.get(out, i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void arraysLongerThanThePacketAreRejected() {
+		for (DataType type : ARRAYS) {
+			ByteBuf buf = Unpooled.buffer();
+			type.writer.accept(buf, sample(type));
+			// claim more elements than there are bytes left, even for
+			// varints, which can be a byte each
+			buf.setByte(0, buf.readableBytes());
+			assertRejected(type, buf);
+		}
+	}
+
+	@Test
+	public void hugeArrayLengthsAreRejected() {
+		for (DataType type : ARRAYS) {
+			ByteBuf buf = Unpooled.buffer();
+			WireFormat.writeVarInt(buf, Integer.MAX_VALUE, 5);
+			buf.writeZero(16);
+			assertRejected(type, buf);
+		}
+	}
+
+	@Test
+	public void negativeArrayLengthsAreRejected() {
+		for (DataType type : ARRAYS) {
+			ByteBuf buf = Unpooled.buffer();
+			WireFormat.writeVarInt(buf, -1, 5);
+			buf.writeZero(16);
+			assertRejected(type, buf);
+		}
+	}
+
+	private static void assertRejected(DataType type, ByteBuf buf) {
+		try {
+			type.reader.apply(buf);
+			fail("Expected "+type+" with a bad length to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.minecraftforge.fml.relauncher.Side;
+
+public class BitPackedFieldTest {
+	enum Mode { OFF, IDLE, RUNNING, BLOCKED }
+
+	@Test
+	public void packedFieldsRoundTripAtTheirRangeEdges() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("packed").boundTo(Side.CLIENT)
+			.with(DataType.BOOLEAN, "first")
+			.with(-5, 10, "bounded")
+			.with(Integer.MIN_VALUE, Integer.MAX_VALUE, "wide")
+			.with(Mode.class, "mode")
+			.with(DataType.BOOLEAN, "last")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		for (boolean high : new boolean[] { false, true }) {
+			Slots values = new Slots(codec);
+			set(values, "first", high);
+			set(values, "bounded", high ? 10 : -5);
+			set(values, "wide", high ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+			set(values, "mode", high ? Mode.BLOCKED : Mode.OFF);
+			set(values, "last", !high);
+			Slots out = roundTrip(codec, values);
+			assertEquals(high, get(out, "first"));
+			assertEquals((long)(high ? 10 : -5), get(out, "bounded"));
+			assertEquals((long)(high ? Integer.MAX_VALUE : Integer.MIN_VALUE), get(out, "wide"));
+			assertEquals(high ? Mode.BLOCKED : Mode.OFF, get(out, "mode"));
+			assertEquals(!high, get(out, "last"));
+		}
+	}
+
+	@Test
+	public void packedFieldsRejectValuesPastTheirRange() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("packed").boundTo(Side.CLIENT)
+			.with(-5, 10, "bounded")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		int bounded = codec.spec.indexOf("bounded");
+		assertOutOfRange(codec, bounded, -6);
+		assertOutOfRange(codec, bounded, 11);
+		codec.checkRange(bounded, -5);
+		codec.checkRange(bounded, 10);
+	}
+
+	private static void assertOutOfRange(PacketCodec codec, int slot, long value) {
+		try {
+			codec.checkRange(slot, value);
+			fail("Expected "+value+" to be out of range for '"+codec.keys[slot]+"'");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.unascribed.lambdanetwork;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class CompressedFrameTest {
+
+	private static ByteBuf payload(int i) {
+		return Unpooled.copiedBuffer("{\"machine\":"+i+",\"status\":\"Working\",\"energy\":"+(i*137)+",\"owner\":\"Steve\"}", Charsets.UTF_8);
+	}
+
+	/**
+	 * Frames the given payload like {@link LambdaChannel} does: its length
+	 * as a varint, then the payload sync flushed into the deflate stream.
+	 */
+	private static ByteBuf frame(CompressionContext ctx, ByteBuf payload) {
+		ByteBuf frame = Unpooled.buffer();
+		WireFormat.writeVarInt(frame, payload.readableBytes(), 5);
+		ctx.deflate(payload, frame, 6);
+		return frame;
+	}
+
+	private static ByteBuf unframe(CompressionContext ctx, ByteBuf frame) throws DataFormatException {
+		int len = WireFormat.readVarInt(frame, 5);
+		ByteBuf out = Unpooled.buffer(1, len);
+		ctx.inflate(frame, out, len);
+		return out;
+	}
+
+	@Test
+	public void framesShareOneStream() throws DataFormatException {
+		CompressionContext deflate = new CompressionContext();
+		List<ByteBuf> frames = Lists.newArrayList();
+		for (int i = 0; i < 10; i++) {
+			frames.add(frame(deflate, payload(i)));
+		}
+		// later frames refer back to the earlier ones
+		assertTrue(frames.get(9).readableBytes() < frames.get(0).readableBytes());
+		CompressionContext inflate = new CompressionContext();
+		for (int i = 0; i < frames.size(); i++) {
+			assertEquals(payload(i), unframe(inflate, frames.get(i)));
+		}
+	}
+
+	@Test
+	public void largeFramesRoundTrip() throws DataFormatException {
+		// bigger than the context's output buffer, and incompressible
+		byte[] data = new byte[100000];
+		long seed = 42;
+		for (int i = 0; i < data.length; i++) {
+			seed = seed*6364136223846793005L+1442695040888963407L;
+			data[i] = (byte)(seed >>> 56);
+		}
+		CompressionContext deflate = new CompressionContext();
+		CompressionContext inflate = new CompressionContext();
+		ByteBuf small = frame(deflate, payload(1));
+		ByteBuf large = frame(deflate, Unpooled.wrappedBuffer(data));
+		assertEquals(payload(1), unframe(inflate, small));
+		assertEquals(Unpooled.wrappedBuffer(data), unframe(inflate, large));
+	}
+
+	@Test(expected=DataFormatException.class)
+	public void framesLongerThanDeclaredAreRejected() throws DataFormatException {
+		ByteBuf frame = Unpooled.buffer();
+		new CompressionContext().deflate(payload(1), frame, 6);
+		new CompressionContext().inflate(frame, Unpooled.buffer(), 10);
+	}
+
+	@Test(expected=DataFormatException.class)
+	public void framesShorterThanDeclaredAreRejected() throws DataFormatException {
+		ByteBuf frame = Unpooled.buffer();
+		ByteBuf payload = payload(1);
+		int len = payload.readableBytes();
+		new CompressionContext().deflate(payload, frame, 6);
+		new CompressionContext().inflate(frame, Unpooled.buffer(), len+1);
+	}
+
+	@Test(expected=DataFormatException.class)
+	public void framesOutOfOrderAreRejected() throws DataFormatException {
+		CompressionContext deflate = new CompressionContext();
+		frame(deflate, payload(1));
+		ByteBuf second = frame(deflate, payload(2));
+		// the second frame refers back to a first one this side never saw
+		unframe(new CompressionContext(), second);
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class DeltaEncodingTest {
+
+	@Test
+	public void deltasApplyToTheLastFullState() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("machine").boundTo(Side.CLIENT)
+			.with(DataType.VARINT, "id")
+			.with(DataType.VARINT, "energy")
+			.with(DataType.STRING, "status")
+			.with(DataType.BOOLEAN, "running")
+			.deltaEncodedBy("id")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		ConnectionState sender = new ConnectionState();
+		ConnectionState receiver = new ConnectionState();
+
+		Slots first = machine(codec, 3, 1000, "Idle", false);
+		Slots received = receive(codec, receiver, send(codec, sender, first));
+		assertEquals(first.toMap(), received.toMap());
+
+		Slots second = machine(codec, 3, 1200, "Idle", false);
+		ByteBuf delta = send(codec, sender, second);
+		assertEquals(PacketCodec.MODE_DELTA, delta.getUnsignedByte(codec.discriminatorBytes));
+		assertEquals(second.toMap(), receive(codec, receiver, delta).toMap());
+
+		// a fresh receiver has no baseline for the next delta
+		ConnectionState forgetful = new ConnectionState();
+		Slots third = machine(codec, 3, 1200, "Working", true);
+		assertNull(receive(codec, forgetful, send(codec, sender, third)));
+
+		// so it asks for a resync of that key, and only asks once
+		assertTrue(forgetful.requestResync(codec, 0));
+		assertFalse(forgetful.requestResync(codec, 1000));
+		ByteBuf resync = Unpooled.buffer();
+		codec.encodeDeltaKey(third, resync);
+		Slots key = new Slots(codec);
+		codec.decodeDeltaKey(resync, key, null);
+		assertFalse(resync.isReadable());
+
+		// and the sender resends what it last sent for that key
+		Slots values = sender.sentBaselines.get(codec.stateKey(key));
+		ByteBuf full = Unpooled.buffer(codec.sizeOf(values));
+		codec.encode(values, full, PacketCodec.MODE_FULL, null);
+		assertEquals(third.toMap(), receive(codec, forgetful, full).toMap());
+		Slots fourth = machine(codec, 3, 900, "Working", true);
+		assertEquals(fourth.toMap(), receive(codec, forgetful, send(codec, sender, fourth)).toMap());
+	}
+
+	private static Slots machine(PacketCodec codec, int id, int energy, String status, boolean running) {
+		Slots values = new Slots(codec);
+		set(values, "id", id);
+		set(values, "energy", energy);
+		set(values, "status", status);
+		set(values, "running", running);
+		return values;
+	}
+
+	/**
+	 * Encodes the given values against the sender's last baseline for
+	 * their key, like {@link LambdaChannel} does, and makes them the new one.
+	 */
+	private static ByteBuf send(PacketCodec codec, ConnectionState sender, Slots values) {
+		StateKey key = codec.stateKey(values);
+		Slots baseline = sender.sentBaselines.get(key);
+		ByteBuf buf = Unpooled.buffer(codec.sizeOf(values));
+		if (baseline == null) {
+			codec.encode(values, buf, PacketCodec.MODE_FULL, null);
+		} else {
+			codec.encodeDelta(values, codec.deltaMask(values, baseline), buf, null);
+		}
+		sender.sentBaselines.put(key, values);
+		return buf;
+	}
+
+	/**
+	 * @return the decoded values, or null if the packet was a delta and the
+	 * 		receiver had no baseline for it
+	 */
+	private static Slots receive(PacketCodec codec, ConnectionState receiver, ByteBuf buf) {
+		assertEquals(codec.discriminator, WireFormat.readVarInt(buf, 5));
+		int mode = buf.readUnsignedByte();
+		Slots values = new Slots(codec);
+		if (mode == PacketCodec.MODE_FULL) {
+			codec.decode(buf, values, null);
+		} else {
+			assertEquals(PacketCodec.MODE_DELTA, mode);
+			codec.decodeDeltaKey(buf, values, null);
+			Slots baseline = receiver.receivedBaselines.get(codec.stateKey(values));
+			codec.decodeDelta(buf, values, baseline, null);
+			if (baseline == null) return null;
+		}
+		assertFalse(buf.isReadable());
+		receiver.receivedBaselines.put(codec.stateKey(values), values);
+		return values;
+	}
+
+	@Test
+	public void baselinesDontShareArraysWithHandlers() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("chunk").boundTo(Side.CLIENT)
+			.with(DataType.VARINT, "id")
+			.with(DataType.INT_ARRAY, "heights")
+			.deltaEncodedBy("id")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		Slots values = new Slots(codec);
+		set(values, "id", 1);
+		set(values, "heights", new int[] { 64, 65, 66 });
+		Slots received = decode(codec, encode(codec, values));
+		Slots baseline = LambdaChannel.baseline(codec, received);
+		// what a handler could do with the array its token gives it
+		((int[])get(received, "heights"))[0] = 0;
+		assertArrayEquals(new int[] { 64, 65, 66 }, (int[])get(baseline, "heights"));
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.unascribed.lambdanetwork;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+public class FragmentTransferTest {
+	private final ByteBufAllocator alloc = UnpooledByteBufAllocator.DEFAULT;
+
+	private static ByteBuf payload(int length) {
+		ByteBuf buf = Unpooled.buffer(length);
+		for (int i = 0; i < length; i++) {
+			buf.writeByte(i*31);
+		}
+		return buf;
+	}
+
+	@Test
+	public void fragmentsReassembleInOrder() {
+		ConnectionState state = new ConnectionState();
+		// bigger than the buffer a transfer starts with
+		int total = LambdaChannel.MAX_FRAGMENT*5+123;
+		ByteBuf payload = payload(total);
+		ByteBuf complete = null;
+		for (int offset = 0; offset < total; offset += LambdaChannel.MAX_FRAGMENT) {
+			assertNull(complete);
+			int len = Math.min(LambdaChannel.MAX_FRAGMENT, total-offset);
+			complete = state.addFragment(alloc, 7, total, offset, payload.slice(offset, len));
+		}
+		assertEquals(payload, complete);
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	@Test
+	public void transfersInterleave() {
+		ConnectionState state = new ConnectionState();
+		ByteBuf a = payload(10);
+		ByteBuf b = payload(6);
+		assertNull(state.addFragment(alloc, 1, 10, 0, a.slice(0, 5)));
+		assertNull(state.addFragment(alloc, 2, 6, 0, b.slice(0, 3)));
+		assertEquals(b, state.addFragment(alloc, 2, 6, 3, b.slice(3, 3)));
+		assertEquals(a, state.addFragment(alloc, 1, 10, 5, a.slice(5, 5)));
+	}
+
+	@Test
+	public void transfersMustStartAtTheBeginning() {
+		ConnectionState state = new ConnectionState();
+		assertBadFragment(state, 1, 10, 5, payload(5));
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	@Test
+	public void gapsAndOverlapsAbandonTheTransfer() {
+		ConnectionState state = new ConnectionState();
+		assertNull(state.addFragment(alloc, 1, 10, 0, payload(4)));
+		assertBadFragment(state, 1, 10, 6, payload(4));
+		assertTrue(state.inboundTransfers.isEmpty());
+
+		assertNull(state.addFragment(alloc, 2, 10, 0, payload(4)));
+		assertBadFragment(state, 2, 10, 2, payload(4));
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	@Test
+	public void fragmentsCantRunPastTheTotal() {
+		ConnectionState state = new ConnectionState();
+		assertNull(state.addFragment(alloc, 1, 10, 0, payload(6)));
+		assertBadFragment(state, 1, 10, 6, payload(5));
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	@Test
+	public void fragmentsCantChangeTheTotal() {
+		ConnectionState state = new ConnectionState();
+		assertNull(state.addFragment(alloc, 1, 10, 0, payload(4)));
+		assertBadFragment(state, 1, 12, 4, payload(4));
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	@Test
+	public void concurrentTransfersAreLimited() {
+		ConnectionState state = new ConnectionState();
+		int i = 0;
+		try {
+			for (; i < 1000; i++) {
+				assertNull(state.addFragment(alloc, i, 10, 0, payload(1)));
+			}
+			fail("Expected the number of transfers to be limited");
+		} catch (IllegalArgumentException e) {
+			assertEquals(i, state.inboundTransfers.size());
+		}
+		state.close();
+		assertTrue(state.inboundTransfers.isEmpty());
+	}
+
+	private void assertBadFragment(ConnectionState state, int transfer, int total, int offset, ByteBuf piece) {
+		try {
+			state.addFragment(alloc, transfer, total, offset, piece);
+			fail("Expected fragment at offset "+offset+" of transfer "+transfer+" to be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
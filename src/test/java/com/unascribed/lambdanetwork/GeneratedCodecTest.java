@@ -0,0 +1,76 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import java.util.UUID;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class GeneratedCodecTest {
+
+	@Test
+	public void generatedCodecsWriteTheSameBytesAsInterpretedOnes() {
+		LambdaNetworkBuilder builder = builder();
+		PacketSpec spec = builder.packet("everything").boundTo(Side.CLIENT);
+		DataType[] types = {
+				DataType.VARINT, DataType.VARINT_ZIGZAG, DataType.UINT_8, DataType.INT_8,
+				DataType.UINT_16, DataType.INT_16, DataType.UINT_24, DataType.INT_24,
+				DataType.UINT_32, DataType.INT_32, DataType.INT_64, DataType.FLOAT_32,
+				DataType.FLOAT_64, DataType.ANGLE, DataType.STRING, DataType.INTERNED_STRING,
+				DataType.UUID, DataType.VARINT_ARRAY
+		};
+		for (int i = 0; i < types.length; i++) {
+			spec.with(types[i], "field"+i);
+		}
+		spec.with(1/32D, "fixed")
+			.with(DataType.BOOLEAN, "flag")
+			.with(0, 15, "level")
+			.handledBy((player, token) -> {});
+		PacketCodec generated = codec(builder, true);
+		// not every JVM lets us define classes, and then there's nothing to compare
+		Assume.assumeNotNull(generated.fields);
+		PacketCodec interpreted = codec(builder, false);
+		assertNull(interpreted.fields);
+
+		Object[] data = {
+				-300000, -77, 200, -100, 60000, -30000, 16000000, -8000000,
+				4000000000L, -2000000000, Long.MIN_VALUE+5, 1.5f,
+				Math.PI, 90.0, "héllo", "interned",
+				new UUID(0x0123456789ABCDEFL, 0xFEDCBA9876543210L), new int[] { 1, 300, -1 }
+		};
+		ByteBuf[] bufs = new ByteBuf[2];
+		PacketCodec[] codecs = { generated, interpreted };
+		for (int c = 0; c < codecs.length; c++) {
+			Slots values = new Slots(codecs[c]);
+			for (int i = 0; i < data.length; i++) {
+				set(values, "field"+i, data[i]);
+			}
+			set(values, "fixed", -12.34);
+			set(values, "flag", true);
+			set(values, "level", 15);
+			bufs[c] = encode(codecs[c], values);
+		}
+		assertEquals(ByteBufUtil.hexDump(bufs[1]), ByteBufUtil.hexDump(bufs[0]));
+
+		// and each reads what the other wrote
+		Slots fromGenerated = decode(interpreted, bufs[0]);
+		Slots fromInterpreted = decode(generated, bufs[1]);
+		for (int i = 0; i < codecs[0].keys.length; i++) {
+			String key = codecs[0].keys[i];
+			Object a = get(fromGenerated, key);
+			Object b = get(fromInterpreted, key);
+			if (a instanceof int[]) {
+				assertArrayEquals(key, (int[])a, (int[])b);
+			} else {
+				assertEquals(key, a, b);
+			}
+		}
+	}
+
+}
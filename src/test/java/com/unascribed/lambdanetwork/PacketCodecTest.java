@@ -0,0 +1,39 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class PacketCodecTest {
+
+	@Test
+	public void moreThanEightBooleansSpillIntoTheNextByte() {
+		LambdaNetworkBuilder builder = builder();
+		PacketSpec spec = builder.packet("flags").boundTo(Side.CLIENT);
+		for (int i = 0; i < 11; i++) {
+			spec.with(DataType.BOOLEAN, "flag"+i);
+		}
+		spec.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		assertEquals(2, codec.bitfieldBytes);
+		// every pattern of the first, eighth, ninth and last flags
+		for (int pattern = 0; pattern < 16; pattern++) {
+			Slots values = new Slots(codec);
+			for (int i = 0; i < 11; i++) {
+				set(values, "flag"+i, false);
+			}
+			set(values, "flag0", (pattern & 1) != 0);
+			set(values, "flag7", (pattern & 2) != 0);
+			set(values, "flag8", (pattern & 4) != 0);
+			set(values, "flag10", (pattern & 8) != 0);
+			ByteBuf buf = encode(codec, values);
+			assertEquals(codec.discriminatorBytes+2, buf.readableBytes());
+			assertEquals(values.toMap(), decode(codec, buf).toMap());
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraftforge.fml.relauncher.Side;
+
+public class PacketIdTest {
+
+	@Test
+	public void frequentPacketsGetTheLowestIds() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("rare").boundTo(Side.CLIENT).with(DataType.VARINT, "a").handledBy((player, token) -> {});
+		builder.packet("common").boundTo(Side.CLIENT).frequencyHint(5).with(DataType.VARINT, "a").handledBy((player, token) -> {});
+		builder.packet("alsoCommon").boundTo(Side.CLIENT).frequencyHint(5).with(DataType.VARINT, "a").handledBy((player, token) -> {});
+		builder.packet("hot").boundTo(Side.CLIENT).frequencyHint(100).with(DataType.VARINT, "a").handledBy((player, token) -> {});
+		PacketCodec[] codecs = LambdaChannel.assignIds(builder.getPackets("test"));
+		String[] order = { "hot", "common", "alsoCommon", "rare" };
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(order[i], codecs[i].spec.getIdentifier());
+			assertEquals(LambdaChannel.CONTROL_IDS+i, codecs[i].discriminator);
+		}
+	}
+
+	@Test
+	public void idsPastOneByteRoundTrip() {
+		LambdaNetworkBuilder builder = builder();
+		for (int i = 0; i < 200; i++) {
+			builder.packet("packet"+i).boundTo(Side.CLIENT).with(DataType.VARINT, "value").handledBy((player, token) -> {});
+		}
+		PacketCodec[] codecs = LambdaChannel.assignIds(builder.getPackets("test"));
+		for (PacketCodec codec : codecs) {
+			int id = codec.discriminator;
+			assertEquals(id < 128 ? 1 : 2, codec.discriminatorBytes);
+			Slots values = new Slots(codec);
+			set(values, "value", id*1000);
+			ByteBuf buf = encode(codec, values);
+			assertEquals(codec.sizeOf(values), buf.readableBytes());
+			assertEquals(id*1000L, get(decode(codec, buf), "value"));
+		}
+		assertEquals(LambdaChannel.CONTROL_IDS+199, codecs[199].discriminator);
+	}
+
+	@Test
+	public void fingerprintChangesWithTheIds() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("a").boundTo(Side.CLIENT).with(DataType.VARINT, "value").handledBy((player, token) -> {});
+		builder.packet("b").boundTo(Side.CLIENT).with(DataType.VARINT, "value").handledBy((player, token) -> {});
+		long before = LambdaChannel.fingerprint(LambdaChannel.assignIds(builder.getPackets("test")));
+		assertEquals(before, LambdaChannel.fingerprint(LambdaChannel.assignIds(builder.getPackets("test"))));
+		builder.getPackets("test").get(1).frequencyHint(1);
+		assertNotEquals(before, LambdaChannel.fingerprint(LambdaChannel.assignIds(builder.getPackets("test"))));
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.unascribed.lambdanetwork;
+
+import static com.unascribed.lambdanetwork.TestPackets.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import net.minecraftforge.fml.relauncher.Side;
+
+public class QuantizedFieldTest {
+
+	@Test
+	public void quantizedFieldsRoundTripAtTheirRangeEdges() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("quantized").boundTo(Side.CLIENT)
+			.with(DataType.BOOLEAN, "first")
+			.with(-1, 1, 1/1000D, "quantized")
+			.with(DataType.BOOLEAN, "last")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		for (boolean high : new boolean[] { false, true }) {
+			Slots values = new Slots(codec);
+			set(values, "first", high);
+			set(values, "quantized", high ? 1.0 : -1.0);
+			set(values, "last", !high);
+			Slots out = roundTrip(codec, values);
+			assertEquals(high, get(out, "first"));
+			assertEquals(high ? 1.0 : -1.0, (Double)get(out, "quantized"), 1/2000D);
+			assertEquals(!high, get(out, "last"));
+		}
+	}
+
+	@Test
+	public void quantizedFieldsRejectValuesPastTheirRange() {
+		LambdaNetworkBuilder builder = builder();
+		builder.packet("quantized").boundTo(Side.CLIENT)
+			.with(-1, 1, 1/1000D, "quantized")
+			.handledBy((player, token) -> {});
+		PacketCodec codec = codec(builder);
+		int quantized = codec.spec.indexOf("quantized");
+		assertOutOfRange(codec, quantized, -1.01);
+		assertOutOfRange(codec, quantized, 1.01);
+		assertOutOfRange(codec, quantized, Double.NaN);
+		// rounds to the last step, so it's still in range
+		codec.checkRange(quantized, 1.0004);
+	}
+
+	private static void assertOutOfRange(PacketCodec codec, int slot, double value) {
+		try {
+			codec.checkRange(slot, value);
+			fail("Expected "+value+" to be out of range for '"+codec.keys[slot]+"'");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
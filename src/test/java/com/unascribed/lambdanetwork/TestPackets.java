@@ -0,0 +1,72 @@
+package com.unascribed.lambdanetwork;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Builds codecs straight from their specs, the same way the benchmarks do,
+ * so the tests never need Minecraft to be running.
+ */
+final class TestPackets {
+
+	private TestPackets() {}
+
+	static LambdaNetworkBuilder builder() {
+		return LambdaNetwork.builder().channel("test");
+	}
+
+	/**
+	 * @return a codec for the last packet declared on the given builder,
+	 * 		with the first id after the control ids
+	 */
+	static PacketCodec codec(LambdaNetworkBuilder builder, boolean generate) {
+		List<PacketSpec> specs = builder.getPackets("test");
+		return new PacketCodec(PacketSpec.immutableClone(specs.get(specs.size()-1)), LambdaChannel.CONTROL_IDS, generate);
+	}
+
+	static PacketCodec codec(LambdaNetworkBuilder builder) {
+		return codec(builder, false);
+	}
+
+	static ByteBuf encode(PacketCodec codec, Slots values) {
+		values.checkComplete();
+		ByteBuf buf = Unpooled.buffer(codec.sizeOf(values));
+		codec.encode(values, buf);
+		return buf;
+	}
+
+	/**
+	 * Reads the discriminator, and the mode of delta encoded packets, then
+	 * decodes the rest of the given packet.
+	 */
+	static Slots decode(PacketCodec codec, ByteBuf buf) {
+		int id = WireFormat.readVarInt(buf, 5);
+		if (id != codec.discriminator) {
+			throw new AssertionError("Expected packet id "+codec.discriminator+", got "+id);
+		}
+		if (codec.delta) {
+			buf.readUnsignedByte();
+		}
+		Slots values = new Slots(codec);
+		codec.decode(buf, values, null);
+		if (buf.isReadable()) {
+			throw new AssertionError(buf.readableBytes()+" bytes left over after decoding");
+		}
+		return values;
+	}
+
+	static Slots roundTrip(PacketCodec codec, Slots values) {
+		return decode(codec, encode(codec, values));
+	}
+
+	static void set(Slots values, String key, Object value) {
+		values.setBoxed(values.codec.spec.indexOf(key), value);
+	}
+
+	static Object get(Slots values, String key) {
+		return values.getBoxed(values.codec.spec.indexOf(key));
+	}
+
+}